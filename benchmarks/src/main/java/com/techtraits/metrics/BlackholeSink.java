@@ -0,0 +1,36 @@
+package com.techtraits.metrics;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Consumes collected values without encoding them, isolating the cost of collection.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class BlackholeSink implements MetricSink {
+
+	private final Blackhole blackhole;
+
+	BlackholeSink(Blackhole blackhole) {
+		this.blackhole = blackhole;
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, long value, long timeStamp) {
+		blackhole.consume(value);
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, double value, long timeStamp) {
+		blackhole.consume(value);
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, String value, long timeStamp) {
+		blackhole.consume(value);
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Collecting every metric of a registry: the type dispatch, snapshots and gauge calls, without and then with encoding the lines.
+ *
+ * @author Usman Ismail
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollectionBenchmark {
+
+	private static final long TIME_STAMP = 1349000000l;
+
+	private HostedGraphiteReporter reporter;
+	private LineEncoder lines;
+	private PickleEncoder pickles;
+
+	@Setup(Level.Trial)
+	public void createReporter() throws Exception {
+		reporter = new HostedGraphiteReporter("benchmark", "http://localhost/", new NoopURLFetchService());
+		lines = new LineEncoder(reporter, 1024);
+		pickles = new PickleEncoder(reporter, 1024, 500);
+	}
+
+	@Benchmark
+	public void collect(RegistryState registry, Blackhole blackhole) throws IOException {
+		MetricSink sink = new BlackholeSink(blackhole);
+		for (Map.Entry<MetricName, Metric> entry : registry.metrics.entrySet()) {
+			reporter.writeMetric(sink, entry.getKey(), entry.getValue(), TIME_STAMP);
+		}
+	}
+
+	@Benchmark
+	public int collectLines(RegistryState registry) throws IOException {
+		lines.reset();
+		for (Map.Entry<MetricName, Metric> entry : registry.metrics.entrySet()) {
+			reporter.writeMetric(lines, entry.getKey(), entry.getValue(), TIME_STAMP);
+		}
+		return lines.size();
+	}
+
+	@Benchmark
+	public int collectPickles(RegistryState registry) throws IOException {
+		pickles.reset();
+		for (Map.Entry<MetricName, Metric> entry : registry.metrics.entrySet()) {
+			reporter.writeMetric(pickles, entry.getKey(), entry.getValue(), TIME_STAMP);
+		}
+		pickles.finish();
+		return pickles.size();
+	}
+
+}
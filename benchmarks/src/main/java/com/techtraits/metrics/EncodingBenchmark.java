@@ -0,0 +1,77 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Encoding values already collected from a registry, and building the name prefixes they are encoded with.
+ *
+ * @author Usman Ismail
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodingBenchmark {
+
+	private static final long TIME_STAMP = 1349000000l;
+
+	private HostedGraphiteReporter reporter;
+	private RecordedValues values;
+	private LineEncoder lines;
+	private PickleEncoder pickles;
+
+	@Setup(Level.Trial)
+	public void collectValues(RegistryState registry) throws Exception {
+		reporter = new HostedGraphiteReporter("benchmark", "http://localhost/", new NoopURLFetchService());
+		values = new RecordedValues(registry.metrics.size() * 4);
+		for (Map.Entry<MetricName, Metric> entry : registry.metrics.entrySet()) {
+			reporter.writeMetric(values, entry.getKey(), entry.getValue(), TIME_STAMP);
+		}
+		lines = new LineEncoder(reporter, 1024);
+		pickles = new PickleEncoder(reporter, 1024, 500);
+	}
+
+	@Benchmark
+	public int encodeLines() throws IOException {
+		lines.reset();
+		values.replay(lines);
+		return lines.size();
+	}
+
+	@Benchmark
+	public int encodePickles() throws IOException {
+		pickles.reset();
+		values.replay(pickles);
+		pickles.finish();
+		return pickles.size();
+	}
+
+	@Benchmark
+	public void sanitizeName(RegistryState registry, Blackhole blackhole) {
+		for (MetricName name : registry.metrics.keySet()) {
+			blackhole.consume(reporter.sanitizeName(name));
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP endpoint on the loopback interface that reads and discards every request and answers 202, so transport benchmarks measure the
+ * requests rather than the receiver.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class LoopbackEndpoint implements HttpHandler {
+
+	private final HttpServer server;
+	private final ExecutorService handlers = Executors.newCachedThreadPool();
+	private final ExecutorService fetches = Executors.newCachedThreadPool();
+	private final HTTPResponse accepted;
+
+	LoopbackEndpoint() throws IOException {
+		// HTTPResponse has no public constructor
+		accepted = mock(HTTPResponse.class);
+		when(accepted.getResponseCode()).thenReturn(202);
+		when(accepted.getContent()).thenReturn(new byte[0]);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this);
+		server.setExecutor(handlers);
+		server.start();
+	}
+
+	String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	void stop() {
+		server.stop(0);
+		handlers.shutdownNow();
+		fetches.shutdownNow();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			drain(exchange.getRequestBody());
+			exchange.sendResponseHeaders(202, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return a URLFetchService standing in for URLFetch that sends requests with the JDK's {@link HttpURLConnection} and reads every
+	 *         response to the end, so it reuses kept alive connections just as {@link HttpTransport} does and the two differ only in their
+	 *         transport code. Asynchronous fetches run concurrently.
+	 */
+	URLFetchService fetcher() {
+		return new URLFetchService() {
+
+			@Override
+			public HTTPResponse fetch(URL url) throws IOException {
+				return fetch(new HTTPRequest(url));
+			}
+
+			@Override
+			public HTTPResponse fetch(HTTPRequest request) throws IOException {
+				HttpURLConnection connection = (HttpURLConnection) request.getURL().openConnection();
+				connection.setRequestMethod(request.getMethod().name());
+				for (HTTPHeader header : request.getHeaders()) {
+					connection.setRequestProperty(header.getName(), header.getValue());
+				}
+				connection.setDoOutput(true);
+				OutputStream out = connection.getOutputStream();
+				out.write(request.getPayload());
+				out.close();
+				int code = connection.getResponseCode();
+				drain(code >= 400 ? connection.getErrorStream() : connection.getInputStream());
+				if (code != 202) {
+					throw new IOException("Unexpected response " + code);
+				}
+				return accepted;
+			}
+
+			@Override
+			public Future<HTTPResponse> fetchAsync(URL url) {
+				return fetchAsync(new HTTPRequest(url));
+			}
+
+			@Override
+			public Future<HTTPResponse> fetchAsync(final HTTPRequest request) {
+				final URLFetchService fetcher = this;
+				return fetches.submit(new Callable<HTTPResponse>() {
+
+					@Override
+					public HTTPResponse call() throws Exception {
+						return fetcher.fetch(request);
+					}
+				});
+			}
+		};
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		if (in == null) {
+			return;
+		}
+		byte[] buffer = new byte[8192];
+		while (in.read(buffer) != -1) {
+			// Discarded
+		}
+		in.close();
+	}
+
+}
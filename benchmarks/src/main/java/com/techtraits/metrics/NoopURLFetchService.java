@@ -0,0 +1,95 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.URL;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+
+/**
+ * Accepts every request without sending it, so end to end benchmarks measure only the reporter. Counts the payload bytes it was given so
+ * the work cannot be optimized away.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class NoopURLFetchService implements URLFetchService {
+
+	private final HTTPResponse accepted;
+	private long bytes;
+
+	NoopURLFetchService() {
+		// HTTPResponse has no public constructor
+		accepted = mock(HTTPResponse.class);
+		when(accepted.getResponseCode()).thenReturn(202);
+		when(accepted.getContent()).thenReturn(new byte[0]);
+	}
+
+	@Override
+	public HTTPResponse fetch(URL url) {
+		return accepted;
+	}
+
+	@Override
+	public HTTPResponse fetch(HTTPRequest request) {
+		bytes += request.getPayload().length;
+		return accepted;
+	}
+
+	@Override
+	public Future<HTTPResponse> fetchAsync(URL url) {
+		return new Done(accepted);
+	}
+
+	@Override
+	public Future<HTTPResponse> fetchAsync(HTTPRequest request) {
+		bytes += request.getPayload().length;
+		return new Done(accepted);
+	}
+
+	long getBytes() {
+		return bytes;
+	}
+
+	/** An already completed response. */
+	private static final class Done implements Future<HTTPResponse> {
+
+		private final HTTPResponse response;
+
+		Done(HTTPResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return true;
+		}
+
+		@Override
+		public HTTPResponse get() {
+			return response;
+		}
+
+		@Override
+		public HTTPResponse get(long timeout, TimeUnit unit) {
+			return response;
+		}
+
+	}
+
+}
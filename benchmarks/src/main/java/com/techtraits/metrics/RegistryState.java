@@ -0,0 +1,80 @@
+package com.techtraits.metrics;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * A registry of registrySize metrics of the types named by mix, filled with values once per trial.
+ *
+ * @author Usman Ismail
+ *
+ */
+@State(Scope.Benchmark)
+public class RegistryState {
+
+	private static final int SAMPLES = 100;
+	private static final String[] MIXED_TYPES = { "counters", "gauges", "histograms", "timers", "meters" };
+
+	@Param({ "1000", "10000", "100000", "500000" })
+	public int registrySize;
+
+	/** counters, gauges, histograms, timers or mixed for an even share of every type, meters included. */
+	@Param({ "mixed", "counters", "gauges", "histograms", "timers" })
+	public String mix;
+
+	Map<MetricName, Metric> metrics;
+
+	@Setup(Level.Trial)
+	public void createRegistry() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Random random = new Random(42);
+		for (int i = 0; i < registrySize; i++) {
+			String type = "mixed".equals(mix) ? MIXED_TYPES[i % MIXED_TYPES.length] : mix;
+			MetricName name = new MetricName("com.example.service", type, "metric " + i, "scope" + (i % 16));
+			if ("counters".equals(type)) {
+				registry.newCounter(name).inc(random.nextInt(1000000));
+			} else if ("gauges".equals(type)) {
+				final double value = random.nextDouble() * 1000;
+				registry.newGauge(name, new Gauge<Double>() {
+
+					@Override
+					public Double getValue() {
+						return value;
+					}
+				});
+			} else if ("histograms".equals(type)) {
+				Histogram histogram = registry.newHistogram(name, true);
+				for (int j = 0; j < SAMPLES; j++) {
+					histogram.update(random.nextInt(10000));
+				}
+			} else if ("timers".equals(type)) {
+				Timer timer = registry.newTimer(name, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+				for (int j = 0; j < SAMPLES; j++) {
+					timer.update(random.nextInt(10000), TimeUnit.MICROSECONDS);
+				}
+			} else if ("meters".equals(type)) {
+				Meter meter = registry.newMeter(name, "requests", TimeUnit.SECONDS);
+				meter.mark(random.nextInt(1000000));
+			} else {
+				throw new IllegalArgumentException("Unknown metric type mix: " + mix);
+			}
+		}
+		metrics = registry.allMetrics();
+	}
+
+}
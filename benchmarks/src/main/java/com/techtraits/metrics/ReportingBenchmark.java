@@ -0,0 +1,92 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Reporting a registry end to end into a {@link NoopURLFetchService}, as one request or in chunks.
+ *
+ * @author Usman Ismail
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportingBenchmark {
+
+	private static final long TIME_STAMP = 1349000000l;
+
+	/** The most bytes posted in one request, or 0 to post each report as a single request. */
+	@Param({ "0", "1048576" })
+	public int chunkBytes;
+
+	private NoopURLFetchService fetcher;
+	private HostedGraphiteReporter reporter;
+	private List<MetricRecord> records;
+
+	@Setup(Level.Trial)
+	public void createReporter(RegistryState registry) throws Exception {
+		fetcher = new NoopURLFetchService();
+		reporter = new HostedGraphiteReporter("benchmark", "http://localhost/", fetcher);
+		if (chunkBytes > 0) {
+			reporter.setChunkedPosting(chunkBytes, 4);
+		}
+		final List<MetricRecord> collected = new ArrayList<MetricRecord>();
+		MetricSink recorder = new MetricSink() {
+
+			@Override
+			public void write(MetricName name, MetricPostfix postfix, long value, long timeStamp) {
+				collected.add(new MetricRecord(name, postfix, String.valueOf(value), timeStamp));
+			}
+
+			@Override
+			public void write(MetricName name, MetricPostfix postfix, double value, long timeStamp) {
+				collected.add(new MetricRecord(name, postfix, String.valueOf(value), timeStamp));
+			}
+
+			@Override
+			public void write(MetricName name, MetricPostfix postfix, String value, long timeStamp) {
+				collected.add(new MetricRecord(name, postfix, value, timeStamp));
+			}
+		};
+		for (Map.Entry<MetricName, Metric> entry : registry.metrics.entrySet()) {
+			reporter.writeMetric(recorder, entry.getKey(), entry.getValue(), TIME_STAMP);
+		}
+		records = collected;
+	}
+
+	@Benchmark
+	public long reportMetrics(RegistryState registry) throws IOException {
+		reporter.reportMetrics(registry.metrics, TIME_STAMP);
+		return fetcher.getBytes();
+	}
+
+	@Benchmark
+	public long postMetrics() throws IOException {
+		reporter.postMetrics(records);
+		return fetcher.getBytes();
+	}
+
+}
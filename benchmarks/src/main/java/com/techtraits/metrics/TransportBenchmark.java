@@ -0,0 +1,83 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Posting an encoded report to a {@link LoopbackEndpoint} through the URLFetch transport or through {@link HttpTransport}, both reusing
+ * kept alive connections so only the transports differ. Reported both as the latency of a request and as requests a second.
+ *
+ * @author Usman Ismail
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.AverageTime, Mode.Throughput })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+
+	private static final long TIME_STAMP = 1349000000l;
+
+	@Param({ "urlfetch", "http" })
+	public String transport;
+
+	/** The lines in the posted report. */
+	@Param({ "10", "10000" })
+	public int lines;
+
+	private LoopbackEndpoint endpoint;
+	private MetricsTransport sender;
+	private byte[] payload;
+
+	@Setup(Level.Trial)
+	public void createTransport() throws Exception {
+		endpoint = new LoopbackEndpoint();
+		if ("urlfetch".equals(transport)) {
+			sender = new URLFetchTransport(endpoint.fetcher(), new URL(endpoint.getUrl()), new HTTPHeader("Authorization",
+					"Basic YmVuY2htYXJrOmZvbw=="));
+		} else if ("http".equals(transport)) {
+			sender = new HttpTransport("benchmark", endpoint.getUrl());
+		} else {
+			throw new IllegalArgumentException("Unknown transport " + transport);
+		}
+		LineEncoder encoder = new LineEncoder(new HostedGraphiteReporter(sender), 1024);
+		for (int i = 0; i < lines; i++) {
+			encoder.write(new MetricName("benchmark", "counter", "transport" + i), MetricPostfix.COUNT, i, TIME_STAMP);
+		}
+		encoder.finish();
+		payload = encoder.toByteArray();
+	}
+
+	@TearDown(Level.Trial)
+	public void stopEndpoint() throws IOException {
+		sender.close();
+		endpoint.stop();
+	}
+
+	@Benchmark
+	public int send() throws IOException {
+		sender.send(payload, 0, payload.length);
+		return payload.length;
+	}
+
+}
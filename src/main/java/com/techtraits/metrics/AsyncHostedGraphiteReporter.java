@@ -0,0 +1,306 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Reports metrics through a {@link HostedGraphiteReporter} without blocking the caller. Submitting a metric reads its values at once and
+ * queues them, a dedicated sender thread encodes and posts whatever is queued in batches, most important first. The queue is bounded and
+ * lock free; when it is full the overflow policy decides what is shed, always from the least important metrics queued first.
+ *
+ * @author Usman Ismail
+ *
+ */
+public class AsyncHostedGraphiteReporter {
+
+	/** What gives way when a metric is submitted to a full queue. */
+	public enum OverflowPolicy {
+		/** Shed the oldest queued metric of the lowest priority, as long as it is not more important than the new one. */
+		DROP_OLDEST,
+		/** Reject the new metric unless a less important one can be shed. */
+		DROP_NEWEST,
+		/** Replace the queued values of a metric of the same name, so each name is queued at most once. Otherwise drop the oldest. */
+		COALESCE
+	}
+
+	/** How important a metric is, less important metrics are shed first and sent last. */
+	public enum Priority {
+		LOW, NORMAL, CRITICAL
+	}
+
+	private static final Logger log = Logger.getLogger(AsyncHostedGraphiteReporter.class.getName());
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final Priority[] PRIORITIES = Priority.values();
+	private final HostedGraphiteReporter reporter;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final Queue<Sample>[] queues;
+	private final ConcurrentMap<MetricName, Sample> queuedByName = new ConcurrentHashMap<MetricName, Sample>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread sender;
+	private volatile boolean waiting;
+	private volatile boolean stopped;
+
+	/**
+	 * Starts the sender thread.
+	 *
+	 * @param reporter
+	 *            encodes and posts the queued metrics
+	 * @param capacity
+	 *            the most metrics queued, also the most sent in one post
+	 * @param policy
+	 */
+	@SuppressWarnings("unchecked")
+	public AsyncHostedGraphiteReporter(HostedGraphiteReporter reporter, int capacity, OverflowPolicy policy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be positive");
+		}
+		this.reporter = reporter;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.queues = new Queue[PRIORITIES.length];
+		for (int i = 0; i < queues.length; i++) {
+			queues[i] = new ConcurrentLinkedQueue<Sample>();
+		}
+		this.sender = new DaemonThreadFactory("hosted-graphite-async").newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				sendUntilStopped();
+			}
+		});
+		sender.start();
+		reporter.attach(this);
+	}
+
+	/**
+	 * Queues the current values of every metric at normal priority.
+	 *
+	 * @param metrics
+	 * @param timeStamp
+	 * @return the number of metrics queued, the others were shed
+	 */
+	public int submit(Map<MetricName, Metric> metrics, long timeStamp) {
+		int accepted = 0;
+		for (Map.Entry<MetricName, Metric> entry : metrics.entrySet()) {
+			if (submit(entry.getKey(), entry.getValue(), timeStamp, Priority.NORMAL)) {
+				accepted++;
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Queues the current values of a metric, never blocking.
+	 *
+	 * @param name
+	 * @param metric
+	 * @param timeStamp
+	 * @param priority
+	 * @return false if the metric was shed because the queue is full
+	 */
+	public boolean submit(MetricName name, Metric metric, long timeStamp, Priority priority) {
+		if (stopped) {
+			throw new IllegalStateException("Already shut down");
+		}
+		RecordedValues values = new RecordedValues(8);
+		try {
+			reporter.writeMetric(values, name, metric, timeStamp);
+		} catch (IOException e) {
+			// Recording values never does I/O
+			throw new IllegalStateException(e);
+		}
+		if (values.size() == 0) {
+			// Filtered out, nothing to send
+			return true;
+		}
+		boolean accepted = offer(name, values, priority);
+		if (waiting) {
+			LockSupport.unpark(sender);
+		}
+		return accepted;
+	}
+
+	private boolean offer(MetricName name, RecordedValues values, Priority priority) {
+		if (policy == OverflowPolicy.COALESCE) {
+			Sample existing = queuedByName.get(name);
+			if (existing != null && existing.replace(values)) {
+				return true;
+			}
+		}
+		Sample sample = new Sample(name, values);
+		if (!reserve() && !shedFor(priority)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		if (policy == OverflowPolicy.COALESCE) {
+			// Only the latest sample of a name is replaced, an older one still queued is sent first
+			queuedByName.put(name, sample);
+		}
+		queues[priority.ordinal()].offer(sample);
+		return true;
+	}
+
+	/**
+	 * @return true if a slot in the queue was claimed
+	 */
+	private boolean reserve() {
+		while (true) {
+			int current = queued.get();
+			if (current >= capacity) {
+				return false;
+			} else if (queued.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Sheds the oldest of the least important queued metrics the policy allows to make room for one of priority, its slot is handed over.
+	 *
+	 * @return false if nothing could be shed
+	 */
+	private boolean shedFor(Priority priority) {
+		int highest = policy == OverflowPolicy.DROP_NEWEST ? priority.ordinal() - 1 : priority.ordinal();
+		for (int i = 0; i <= highest; i++) {
+			Sample victim = queues[i].poll();
+			if (victim != null) {
+				queuedByName.remove(victim.name, victim);
+				victim.take();
+				dropped.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void sendUntilStopped() {
+		while (true) {
+			boolean stopping = stopped;
+			if (send() == 0) {
+				if (stopping) {
+					return;
+				}
+				waiting = true;
+				if (queued.get() == 0 && !stopped) {
+					LockSupport.parkNanos(this, IDLE_NANOS);
+				}
+				waiting = false;
+			}
+		}
+	}
+
+	/**
+	 * Sends up to a queue's worth of metrics in one post, most important first.
+	 *
+	 * @return the number of metrics taken from the queue
+	 */
+	int send() {
+		List<RecordedValues> batch = new ArrayList<RecordedValues>();
+		int taken = 0;
+		for (int i = queues.length - 1; i >= 0 && taken < capacity; i--) {
+			Sample sample;
+			while (taken < capacity && (sample = queues[i].poll()) != null) {
+				queued.decrementAndGet();
+				taken++;
+				queuedByName.remove(sample.name, sample);
+				RecordedValues values = sample.take();
+				if (values != null) {
+					batch.add(values);
+				}
+			}
+		}
+		if (!batch.isEmpty()) {
+			try {
+				reporter.postRecorded(batch);
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "Unable to report metrics", e);
+			}
+		}
+		return taken;
+	}
+
+	/**
+	 * @return the number of metrics waiting to be sent
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of metrics shed since the reporter was created
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stops accepting metrics and waits for the sender to send everything already queued.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return false if the queue was not drained in time
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		stopped = true;
+		LockSupport.unpark(sender);
+		sender.join(Math.max(unit.toMillis(timeout), 1));
+		if (sender.isAlive()) {
+			return false;
+		}
+		reporter.detach(this);
+		return true;
+	}
+
+	/** The values of one submitted metric, replaced in place while queued when coalescing. */
+	private static final class Sample {
+
+		private final MetricName name;
+		private final AtomicReference<RecordedValues> values;
+
+		Sample(MetricName name, RecordedValues values) {
+			this.name = name;
+			this.values = new AtomicReference<RecordedValues>(values);
+		}
+
+		/**
+		 * @return false if the sample was already taken by the sender or shed
+		 */
+		boolean replace(RecordedValues latest) {
+			while (true) {
+				RecordedValues current = values.get();
+				if (current == null) {
+					return false;
+				} else if (values.compareAndSet(current, latest)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return the latest values, or null if they were already taken
+		 */
+		RecordedValues take() {
+			return values.getAndSet(null);
+		}
+
+	}
+
+}
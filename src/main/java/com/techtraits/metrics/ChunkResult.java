@@ -0,0 +1,66 @@
+package com.techtraits.metrics;
+
+/**
+ * The outcome of posting one chunk of a payload.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class ChunkResult {
+
+	static final int NO_RESPONSE = -1;
+
+	private final int offset;
+	private final int length;
+	private final int responseCode;
+	private final String responseText;
+	private final Throwable failure;
+	private final long latencyNanos;
+
+	ChunkResult(int offset, int length, int responseCode, String responseText, Throwable failure, long latencyNanos) {
+		this.offset = offset;
+		this.length = length;
+		this.responseCode = responseCode;
+		this.responseText = responseText;
+		this.failure = failure;
+		this.latencyNanos = latencyNanos;
+	}
+
+	/**
+	 * @return the offset of the chunk within the encoded payload
+	 */
+	int getOffset() {
+		return offset;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the HTTP response code or {@link #NO_RESPONSE} if the request failed before a response arrived
+	 */
+	int getResponseCode() {
+		return responseCode;
+	}
+
+	String getResponseText() {
+		return responseText;
+	}
+
+	Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return the time from posting the chunk until its response was collected
+	 */
+	long getLatencyNanos() {
+		return latencyNanos;
+	}
+
+	boolean isSuccess() {
+		return responseCode == 202;
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+
+/**
+ * Splits an encoded payload into chunks of whole lines no larger than a maximum size and posts them with
+ * {@link URLFetchService#fetchAsync(HTTPRequest)}, keeping at most a fixed number of requests in flight. Whichever request completes
+ * first frees its slot, and its latency is taken when it is seen to complete rather than when the chunks before it have completed.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+class ChunkedPoster {
+
+	private static final long POLL_MICROS = 500;
+	private static final Comparator<ChunkResult> PAYLOAD_ORDER = new Comparator<ChunkResult>() {
+
+		@Override
+		public int compare(ChunkResult first, ChunkResult second) {
+			return first.getOffset() < second.getOffset() ? -1 : first.getOffset() == second.getOffset() ? 0 : 1;
+		}
+	};
+	private final URLFetchService fetcher;
+	private final URL url;
+	private final HTTPHeader authHeader;
+	private final double deadline;
+	private final int maxChunkBytes;
+	private final int maxInFlight;
+
+	/**
+	 * @param fetcher
+	 * @param url
+	 * @param authHeader
+	 * @param deadline
+	 *            the per request deadline in seconds
+	 * @param maxChunkBytes
+	 *            the largest chunk posted, a single line longer than this is posted on its own
+	 * @param maxInFlight
+	 *            the most requests waiting for a response at any time
+	 */
+	ChunkedPoster(URLFetchService fetcher, URL url, HTTPHeader authHeader, double deadline, int maxChunkBytes, int maxInFlight) {
+		if (maxChunkBytes < 1 || maxInFlight < 1) {
+			throw new IllegalArgumentException("Chunk size and requests in flight must be positive");
+		}
+		this.fetcher = fetcher;
+		this.url = url;
+		this.authHeader = authHeader;
+		this.deadline = deadline;
+		this.maxChunkBytes = maxChunkBytes;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @param gzipThreshold
+	 *            chunks of at least this many bytes are gzip compressed, negative to never compress
+	 * @return one result per chunk in payload order
+	 */
+	List<ChunkResult> post(byte[] payload, int offset, int length, int gzipThreshold) throws IOException {
+		List<ChunkResult> results = new ArrayList<ChunkResult>();
+		List<PendingChunk> inFlight = new LinkedList<PendingChunk>();
+		int start = offset;
+		while (start < offset + length) {
+			int end = chunkEnd(payload, start, offset + length);
+			if (inFlight.size() >= maxInFlight) {
+				awaitAny(inFlight, results);
+			}
+			HTTPRequest request = new HTTPRequest(url, HTTPMethod.POST);
+			request.getFetchOptions().setDeadline(deadline);
+			request.setHeader(authHeader);
+			if (gzipThreshold >= 0 && end - start >= gzipThreshold) {
+				request.setHeader(URLFetchTransport.GZIP_ENCODING_HEADER);
+				request.setPayload(Gzip.compress(payload, start, end - start));
+			} else {
+				request.setPayload(Arrays.copyOfRange(payload, start, end));
+			}
+			inFlight.add(new PendingChunk(start, end - start, fetcher.fetchAsync(request), nanoTime()));
+			start = end;
+		}
+		while (!inFlight.isEmpty()) {
+			awaitAny(inFlight, results);
+		}
+		Collections.sort(results, PAYLOAD_ORDER);
+		return results;
+	}
+
+	/**
+	 * Waits until at least one chunk has completed and moves every completed chunk to the results. URLFetch futures have no completion
+	 * callback, so the oldest chunk is waited on briefly and the others are polled.
+	 */
+	private void awaitAny(List<PendingChunk> inFlight, List<ChunkResult> results) throws InterruptedIOException {
+		while (true) {
+			boolean completed = false;
+			for (Iterator<PendingChunk> pending = inFlight.iterator(); pending.hasNext();) {
+				PendingChunk chunk = pending.next();
+				if (chunk.response.isDone()) {
+					results.add(chunk.await(nanoTime()));
+					pending.remove();
+					completed = true;
+				}
+			}
+			if (completed) {
+				return;
+			}
+			try {
+				inFlight.get(0).response.get(POLL_MICROS, TimeUnit.MICROSECONDS);
+			} catch (TimeoutException e) {
+				// Poll again
+			} catch (ExecutionException e) {
+				// Collected with the result
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for metrics post");
+			}
+		}
+	}
+
+	long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * @return the exclusive end of the chunk starting at start, always just after a newline or at the end of the payload
+	 */
+	private int chunkEnd(byte[] payload, int start, int end) {
+		int limit = start + maxChunkBytes;
+		if (limit >= end) {
+			return end;
+		}
+		for (int i = limit - 1; i >= start; i--) {
+			if (payload[i] == '\n') {
+				return i + 1;
+			}
+		}
+		for (int i = limit; i < end; i++) {
+			if (payload[i] == '\n') {
+				return i + 1;
+			}
+		}
+		return end;
+	}
+
+	private static final class PendingChunk {
+
+		private final int offset;
+		private final int length;
+		private final Future<HTTPResponse> response;
+		private final long postedAt;
+
+		PendingChunk(int offset, int length, Future<HTTPResponse> response, long postedAt) {
+			this.offset = offset;
+			this.length = length;
+			this.response = response;
+			this.postedAt = postedAt;
+		}
+
+		/**
+		 * @param completedAt
+		 *            when the chunk was seen to complete, in nanoseconds
+		 */
+		ChunkResult await(long completedAt) throws InterruptedIOException {
+			try {
+				HTTPResponse httpResponse = response.get();
+				byte[] content = httpResponse.getContent();
+				return new ChunkResult(offset, length, httpResponse.getResponseCode(), content == null ? "" : new String(content), null,
+						completedAt - postedAt);
+			} catch (ExecutionException e) {
+				return new ChunkResult(offset, length, ChunkResult.NO_RESPONSE, "", e.getCause(), completedAt - postedAt);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for metrics post");
+			}
+		}
+	}
+
+}
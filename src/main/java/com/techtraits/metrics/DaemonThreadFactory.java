@@ -0,0 +1,29 @@
+package com.techtraits.metrics;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads so that reporter threads never keep the JVM alive.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class DaemonThreadFactory implements ThreadFactory {
+
+	private final String name;
+	private final AtomicInteger created = new AtomicInteger();
+
+	DaemonThreadFactory(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		int number = created.incrementAndGet();
+		Thread thread = new Thread(runnable, number == 1 ? name : name + "-" + number);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+}
@@ -0,0 +1,236 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Passes on only the lines whose value changed since it was last sent, plus every line not sent for a number of reports (the heartbeat) so
+ * Graphite does not see gaps. Counter counts can optionally be sent as the change since the last report instead of the absolute count.
+ * <p>
+ * The last sent value of each line is kept in an open addressing table keyed by a 64 bit hash of the line name, with the values held as raw
+ * long bits, so no per line objects are allocated. Lines not seen for {@link #STALE_REPORTS} reports are dropped when the table grows.
+ * </p>
+ * <p>
+ * The values a report sends are only recorded as sent by {@link #end(boolean)} once the report was delivered or spooled, a report that was
+ * dropped leaves the last sent values alone so its changes, and counter deltas, are sent again by the next report. A report posted in
+ * chunks counts as delivered if any chunk was, the changes in the chunks that were dropped are lost.
+ * </p>
+ * Not thread safe, one report at a time.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class DeltaFilter implements MetricSink {
+
+	static final int STALE_REPORTS = 64;
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final long EMPTY = 0;
+	private static final int NEVER_SENT = Integer.MIN_VALUE;
+
+	private final HostedGraphiteReporter reporter;
+	private final int heartbeatReports;
+	private final boolean counterDeltas;
+	private MetricSink target;
+	private int report;
+	private long[] keys;
+	private long[] values;
+	private int[] sentAt;
+	private int[] seenAt;
+	private int size;
+	private long[] stagedKeys = new long[64];
+	private long[] stagedValues = new long[64];
+	private int staged;
+
+	/**
+	 * @param reporter
+	 *            supplies the encoded name prefixes the line keys are hashed from
+	 * @param heartbeatReports
+	 *            unchanged lines are resent once they have not been sent for this many reports
+	 * @param counterDeltas
+	 *            send counter counts as the change since the previous report
+	 */
+	DeltaFilter(HostedGraphiteReporter reporter, int heartbeatReports, boolean counterDeltas) {
+		if (heartbeatReports < 1) {
+			throw new IllegalArgumentException("Heartbeat must be at least one report: " + heartbeatReports);
+		}
+		this.reporter = reporter;
+		this.heartbeatReports = heartbeatReports;
+		this.counterDeltas = counterDeltas;
+		allocate(1024);
+	}
+
+	/**
+	 * Starts a new report whose changed lines are passed on to target.
+	 * 
+	 * @param target
+	 */
+	DeltaFilter begin(MetricSink target) {
+		this.target = target;
+		report++;
+		staged = 0;
+		return this;
+	}
+
+	/**
+	 * Ends the report, recording the values it passed on as sent if it was delivered.
+	 * 
+	 * @param sent
+	 *            false if the report was dropped
+	 */
+	void end(boolean sent) {
+		if (sent) {
+			for (int i = 0; i < staged; i++) {
+				// Lines seen in this report are never dropped by a rehash, so the key is still there
+				int slot = slotOf(stagedKeys[i]);
+				values[slot] = stagedValues[i];
+				sentAt[slot] = report;
+			}
+		}
+		staged = 0;
+		target = null;
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, long value, long timeStamp) throws IOException {
+		int slot = slotFor(name, postfix);
+		if (postfix == MetricPostfix.COUNTER && counterDeltas) {
+			long previous = sentAt[slot] == NEVER_SENT ? 0 : values[slot];
+			if (shouldSend(slot, value)) {
+				target.write(name, postfix, value - previous, timeStamp);
+			}
+		} else if (shouldSend(slot, value)) {
+			target.write(name, postfix, value, timeStamp);
+		}
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, double value, long timeStamp) throws IOException {
+		if (shouldSend(slotFor(name, postfix), Double.doubleToLongBits(value))) {
+			target.write(name, postfix, value, timeStamp);
+		}
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, String value, long timeStamp) throws IOException {
+		if (shouldSend(slotFor(name, postfix), hash(FNV_OFFSET, String.valueOf(value)))) {
+			target.write(name, postfix, value, timeStamp);
+		}
+	}
+
+	/**
+	 * Decides whether the line goes out in this report, staging its value to be recorded as sent when the report ends.
+	 */
+	private boolean shouldSend(int slot, long bits) {
+		seenAt[slot] = report;
+		if (sentAt[slot] != NEVER_SENT && values[slot] == bits && report - sentAt[slot] < heartbeatReports) {
+			return false;
+		}
+		if (staged == stagedKeys.length) {
+			stagedKeys = Arrays.copyOf(stagedKeys, staged << 1);
+			stagedValues = Arrays.copyOf(stagedValues, staged << 1);
+		}
+		stagedKeys[staged] = keys[slot];
+		stagedValues[staged] = bits;
+		staged++;
+		return true;
+	}
+
+	/**
+	 * @return the slot holding the line, claiming an empty one marked as never sent for a new line
+	 */
+	private int slotFor(MetricName name, MetricPostfix postfix) {
+		long key = hash(hash(FNV_OFFSET, reporter.prefixFor(name)), postfix.getBytes());
+		if (key == EMPTY) {
+			key = 1;
+		}
+		if ((size + 1) * 2 > keys.length) {
+			rehash();
+		}
+		int slot = slotOf(key);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			sentAt[slot] = NEVER_SENT;
+			size++;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return the slot holding key, or the empty slot it would go in
+	 */
+	private int slotOf(long key) {
+		int mask = keys.length - 1;
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash() {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		int[] oldSentAt = sentAt;
+		int[] oldSeenAt = seenAt;
+		int live = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY && report - oldSeenAt[i] <= STALE_REPORTS) {
+				live++;
+			}
+		}
+		int capacity = oldKeys.length;
+		while ((live + 1) * 4 > capacity) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			long key = oldKeys[i];
+			if (key != EMPTY && report - oldSeenAt[i] <= STALE_REPORTS) {
+				int slot = (int) (key ^ (key >>> 32)) & mask;
+				while (keys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = key;
+				values[slot] = oldValues[i];
+				sentAt[slot] = oldSentAt[i];
+				seenAt[slot] = oldSeenAt[i];
+				size++;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new long[capacity];
+		sentAt = new int[capacity];
+		seenAt = new int[capacity];
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private static long hash(long seed, byte[] bytes) {
+		long hash = seed;
+		for (byte b : bytes) {
+			hash ^= b & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static long hash(long seed, String text) {
+		long hash = seed;
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.techtraits.metrics;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of {@link PayloadEncoder}s so the encode buffers, once grown to the size of a report, are reused by every following report.
+ * Encoders write the line protocol, or carbon's pickle protocol when given a frame size.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class EncoderPool {
+
+	private static final int INITIAL_CAPACITY = 8 * 1024;
+	private final HostedGraphiteReporter reporter;
+	private final Queue<PayloadEncoder> encoders = new ConcurrentLinkedQueue<PayloadEncoder>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final int maxPooled;
+	private final int maxRetainedCapacity;
+	private final int pickleFrameEntries;
+
+	/**
+	 * @param reporter
+	 * @param maxPooled
+	 *            the most idle encoders kept
+	 * @param maxRetainedCapacity
+	 *            encoders whose buffer grew beyond this many bytes are discarded rather than pooled
+	 * @param pickleFrameEntries
+	 *            the most tuples in a pickle frame, or zero to encode lines
+	 */
+	EncoderPool(HostedGraphiteReporter reporter, int maxPooled, int maxRetainedCapacity, int pickleFrameEntries) {
+		this.reporter = reporter;
+		this.maxPooled = maxPooled;
+		this.maxRetainedCapacity = maxRetainedCapacity;
+		this.pickleFrameEntries = pickleFrameEntries;
+	}
+
+	PayloadEncoder acquire() {
+		PayloadEncoder encoder = encoders.poll();
+		if (encoder == null) {
+			if (pickleFrameEntries > 0) {
+				return new PickleEncoder(reporter, INITIAL_CAPACITY, pickleFrameEntries);
+			}
+			return new LineEncoder(reporter, INITIAL_CAPACITY);
+		}
+		pooled.decrementAndGet();
+		return encoder;
+	}
+
+	void release(PayloadEncoder encoder) {
+		encoder.reset();
+		if (encoder.capacity() <= maxRetainedCapacity && pooled.incrementAndGet() <= maxPooled) {
+			encoders.offer(encoder);
+		} else if (encoder.capacity() <= maxRetainedCapacity) {
+			pooled.decrementAndGet();
+		}
+	}
+
+}
@@ -0,0 +1,310 @@
+package com.techtraits.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Evaluates the gauges of a report concurrently on a fixed pool of threads before the report is collected, so one slow gauge no longer
+ * holds up the others. A gauge that has not returned by the deadline is late: its last value is reported instead, or it is skipped, and
+ * its evaluation carries on in the background to refresh the last value. A gauge late {@value #SLOW_AFTER} reports in a row is slow and
+ * only evaluated every {@value #SLOW_CADENCE} reports, reporting its last value in between, until it meets the deadline again. A gauge is
+ * never evaluated twice at once, so a gauge that hangs holds at most one thread.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class GaugeEvaluator {
+
+	static final int SLOW_AFTER = 3;
+	static final int SLOW_CADENCE = 5;
+	private static final int MAX_TRACKED_GAUGES = 100000;
+	private static final Logger log = Logger.getLogger(GaugeEvaluator.class.getName());
+	private static final Object FAILED = new Object();
+
+	private final HostedGraphiteReporter reporter;
+	private final ExecutorService executor;
+	private final long deadlineNanos;
+	private final boolean reportLastValue;
+	private final MetricNameCache<GaugeState> states = new MetricNameCache<GaugeState>(MAX_TRACKED_GAUGES);
+	private final AtomicLong reports = new AtomicLong();
+	private int evaluating;
+	private boolean shutdown;
+
+	/**
+	 * @param reporter
+	 *            whose filter decides which gauges are evaluated
+	 * @param threads
+	 *            the most gauges evaluated at once
+	 * @param deadlineNanos
+	 *            how long a report waits for its gauges
+	 * @param reportLastValue
+	 *            report the last value of a late gauge rather than skip it
+	 */
+	GaugeEvaluator(HostedGraphiteReporter reporter, int threads, long deadlineNanos, boolean reportLastValue) {
+		this(reporter, newPool(threads), deadlineNanos, reportLastValue);
+	}
+
+	/**
+	 * @param executor
+	 *            evaluates the gauges, shut down with the evaluator
+	 */
+	GaugeEvaluator(HostedGraphiteReporter reporter, ExecutorService executor, long deadlineNanos, boolean reportLastValue) {
+		if (deadlineNanos < 1) {
+			throw new IllegalArgumentException("Deadline must be positive");
+		}
+		this.reporter = reporter;
+		this.executor = executor;
+		this.deadlineNanos = deadlineNanos;
+		this.reportLastValue = reportLastValue;
+	}
+
+	private static ExecutorService newPool(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads must be positive");
+		}
+		return Executors.newFixedThreadPool(threads, new DaemonThreadFactory("hosted-graphite-gauges"));
+	}
+
+	/**
+	 * @param metrics
+	 * @param self
+	 *            counts the late gauges, or null
+	 * @return metrics in the same order with every gauge replaced by its value for this report, gauges without one left out, or null once
+	 *         the evaluator is shut down
+	 */
+	Map<MetricName, Metric> evaluate(Map<MetricName, Metric> metrics, ReporterMetrics self) {
+		synchronized (this) {
+			if (shutdown) {
+				return null;
+			}
+			evaluating++;
+		}
+		try {
+			return evaluateGauges(metrics, self);
+		} finally {
+			synchronized (this) {
+				if (--evaluating == 0 && shutdown) {
+					executor.shutdown();
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private Map<MetricName, Metric> evaluateGauges(Map<MetricName, Metric> metrics, ReporterMetrics self) {
+		long report = reports.incrementAndGet();
+		long deadline = System.nanoTime() + deadlineNanos;
+		List<GaugeState> pending = new ArrayList<GaugeState>();
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		Map<MetricName, GaugeState> gauges = new HashMap<MetricName, GaugeState>();
+		Set<GaugeState> late = new HashSet<GaugeState>();
+		for (Map.Entry<MetricName, Metric> entry : metrics.entrySet()) {
+			if (!(entry.getValue() instanceof Gauge) || !reporter.isReported(entry.getKey(), entry.getValue())) {
+				continue;
+			}
+			GaugeState state = stateFor(entry.getKey(), (Gauge) entry.getValue());
+			gauges.put(entry.getKey(), state);
+			if (state.isSlow() && report % SLOW_CADENCE != 0) {
+				continue;
+			}
+			Future<Object> future = state.evaluate(executor);
+			if (future != null) {
+				pending.add(state);
+				futures.add(future);
+			} else {
+				// Still evaluating for an earlier report
+				late.add(state);
+			}
+		}
+		Map<GaugeState, Object> values = new HashMap<GaugeState, Object>();
+		for (int i = 0; i < futures.size(); i++) {
+			GaugeState state = pending.get(i);
+			try {
+				values.put(state, futures.get(i).get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS));
+				state.onTime();
+			} catch (TimeoutException e) {
+				// Left running to refresh the last value
+				late.add(state);
+			} catch (ExecutionException e) {
+				log.log(Level.WARNING, "Unable to evaluate gauge " + state.name, e.getCause());
+				values.put(state, FAILED);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				late.addAll(pending.subList(i, pending.size()));
+				break;
+			}
+		}
+
+		Map<MetricName, Metric> result = new LinkedHashMap<MetricName, Metric>(metrics.size() * 4 / 3 + 1);
+		for (Map.Entry<MetricName, Metric> entry : metrics.entrySet()) {
+			GaugeState state = gauges.get(entry.getKey());
+			if (state == null) {
+				if (!(entry.getValue() instanceof Gauge)) {
+					result.put(entry.getKey(), entry.getValue());
+				}
+			} else if (values.containsKey(state)) {
+				Object value = values.get(state);
+				if (value != FAILED) {
+					result.put(entry.getKey(), new EvaluatedGauge(value));
+				}
+			} else {
+				if (late.contains(state)) {
+					late(state, self);
+				}
+				if (reportLastValue && state.evaluated) {
+					result.put(entry.getKey(), new EvaluatedGauge(state.lastValue));
+				}
+			}
+		}
+		return result;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private GaugeState stateFor(MetricName name, Gauge gauge) {
+		GaugeState state = states.get(name);
+		if (state == null || state.gauge != gauge) {
+			state = new GaugeState(name, gauge);
+			states.put(name, state);
+		}
+		return state;
+	}
+
+	private void late(GaugeState state, ReporterMetrics self) {
+		if (self != null) {
+			self.lateGauges.inc();
+		}
+		int misses = state.miss();
+		if (misses > 0) {
+			log.warning("Gauge " + state.name + " missed its deadline " + misses + " reports in a row, evaluating it every " + SLOW_CADENCE
+					+ " reports");
+		} else {
+			log.fine("Gauge " + state.name + " missed its deadline");
+		}
+	}
+
+	/**
+	 * Stops the threads once the reports already evaluating are done, gauges still running are left to finish.
+	 */
+	synchronized void shutdown() {
+		shutdown = true;
+		if (evaluating == 0) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * What is known about one gauge across reports. Concurrent reports and background evaluations share it, so its deadline record is
+	 * guarded by the state itself.
+	 */
+	private static final class GaugeState {
+
+		private final MetricName name;
+		private final Gauge<?> gauge;
+		private final AtomicBoolean running = new AtomicBoolean();
+		private volatile Object lastValue;
+		private volatile boolean evaluated;
+		private int misses;
+		private boolean slow;
+
+		GaugeState(MetricName name, Gauge<?> gauge) {
+			this.name = name;
+			this.gauge = gauge;
+		}
+
+		/**
+		 * @return the evaluation, or null if the previous one is still running
+		 */
+		Future<Object> evaluate(ExecutorService executor) {
+			if (!running.compareAndSet(false, true)) {
+				return null;
+			}
+			try {
+				return executor.submit(new Callable<Object>() {
+
+					@Override
+					public Object call() {
+						try {
+							Object value = gauge.getValue();
+							lastValue = value;
+							evaluated = true;
+							return value;
+						} finally {
+							running.set(false);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				running.set(false);
+				throw e;
+			}
+		}
+
+		synchronized boolean isSlow() {
+			return slow;
+		}
+
+		/**
+		 * Records a missed deadline.
+		 *
+		 * @return the deadlines missed in a row if the gauge just became slow, otherwise 0
+		 */
+		synchronized int miss() {
+			if (++misses >= SLOW_AFTER && !slow) {
+				slow = true;
+				return misses;
+			}
+			return 0;
+		}
+
+		void onTime() {
+			boolean wasSlow;
+			synchronized (this) {
+				misses = 0;
+				wasSlow = slow;
+				slow = false;
+			}
+			if (wasSlow) {
+				log.info("Gauge " + name + " met its deadline, evaluating it every report");
+			}
+		}
+
+	}
+
+	/** A gauge's value for one report. */
+	private static final class EvaluatedGauge extends Gauge<Object> {
+
+		private final Object value;
+
+		EvaluatedGauge(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object getValue() {
+			return value;
+		}
+
+	}
+
+}
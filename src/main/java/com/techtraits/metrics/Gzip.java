@@ -0,0 +1,31 @@
+package com.techtraits.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compresses encoded payloads for the HTTP transports. Payloads are compressed when they are sent, the uncompressed payload is kept
+ * for retries and the spool.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class Gzip {
+
+	private Gzip() {
+	}
+
+	/**
+	 * @return the gzip compressed copy of the given bytes
+	 */
+	static byte[] compress(byte[] bytes, int offset, int length) throws IOException {
+		// Line protocol payloads typically compress at least five fold
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(length / 5, 512));
+		GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8 * 1024);
+		gzip.write(bytes, offset, length);
+		gzip.close();
+		return compressed.toByteArray();
+	}
+
+}
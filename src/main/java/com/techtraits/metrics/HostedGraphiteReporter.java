@@ -1,20 +1,23 @@
 package com.techtraits.metrics;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.api.client.util.Base64;
 import com.google.appengine.api.urlfetch.HTTPHeader;
-import com.google.appengine.api.urlfetch.HTTPMethod;
-import com.google.appengine.api.urlfetch.HTTPRequest;
-import com.google.appengine.api.urlfetch.HTTPResponse;
 import com.google.appengine.api.urlfetch.URLFetchService;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.inject.Inject;
@@ -25,29 +28,331 @@ import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
 import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.stats.Snapshot;
 
 /**
- * This class will use the HTTP Interface to send individual metrics to <a href="http://hostedgraphite.com/docs/">Hosted Graphite</a>.
+ * This class will use the HTTP Interface to send individual metrics to <a href="http://hostedgraphite.com/docs/">Hosted Graphite</a>, or a
+ * {@link MetricsTransport} such as {@link TcpTransport} or {@link UdpTransport} to send them to carbon.
  * 
  * @author Usman Ismail
  * 
  */
 public class HostedGraphiteReporter {
 
-	private final URL hostedGraphiteUrl;
+	/** The domain of the metrics the reporter keeps about itself, reserved so they never collide with reported metrics. */
+	public static final String SELF_METRICS_DOMAIN = "hostedgraphite-reporter";
+
 	private static final Logger log = Logger.getLogger(HostedGraphiteReporter.class.getName());
-	private final URLFetchService fetcher;
-	private final HTTPHeader authHeader;
-	private static final double requestTimeout = 60d; // 60 seconds
+	private final MetricsTransport transport;
+	private final URLFetchTransport urlFetchTransport;
+	private static final SnapshotStatistic[] DEFAULT_SNAPSHOT_STATISTICS = { SnapshotStatistic.MEDIAN, SnapshotStatistic.P95,
+			SnapshotStatistic.P98, SnapshotStatistic.P99 };
+	private volatile SnapshotStatistic[] snapshotStatistics = DEFAULT_SNAPSHOT_STATISTICS;
+	private static final int DEFAULT_NAME_CACHE_SIZE = 100000;
+	private volatile MetricNameCache<byte[]> nameCache = new MetricNameCache<byte[]>(DEFAULT_NAME_CACHE_SIZE);
+	private static final int MAX_POOLED_ENCODERS = 4;
+	private static final int MAX_RETAINED_ENCODER_CAPACITY = 16 * 1024 * 1024;
+	private volatile EncoderPool encoders = new EncoderPool(this, MAX_POOLED_ENCODERS, MAX_RETAINED_ENCODER_CAPACITY, 0);
+	private int pickleFrameEntries;
+	private int collectionParallelism = 1;
+	private volatile ParallelCollector parallelCollector;
+	private volatile ReportPipeline pipeline;
+	private final List<AsyncHostedGraphiteReporter> asyncReporters = new CopyOnWriteArrayList<AsyncHostedGraphiteReporter>();
+	private volatile GaugeEvaluator gaugeEvaluator;
+	private volatile ReporterMetrics selfMetrics;
+	private volatile RollupRule[] rollupRules = new RollupRule[0];
+	private volatile MetricFilter metricFilter;
+	private volatile DeltaFilter deltaFilter;
+	private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+	private volatile MetricsSpool spool;
+	private ScheduledExecutorService spoolDrainer;
 
 	@Inject
 	public HostedGraphiteReporter(@Named("hosted.graphite.key") String hostedGraphiteSecret, @Named("hosted.graphite.url") String hostedGraphiteUrl,
 			URLFetchService fetcher) throws UnsupportedEncodingException, MalformedURLException {
 		String authHeaderString = "Basic " + Base64.encodeBase64String((hostedGraphiteSecret + ":foo").getBytes("ISO-8859-1"));
-		authHeader = new HTTPHeader("Authorization", authHeaderString);
-		this.fetcher = fetcher;
-		this.hostedGraphiteUrl = new URL(hostedGraphiteUrl);
+		this.urlFetchTransport = new URLFetchTransport(fetcher, new URL(hostedGraphiteUrl), new HTTPHeader("Authorization", authHeaderString));
+		this.transport = urlFetchTransport;
+	}
+
+	/**
+	 * Reports through the given transport instead of URLFetch, e.g. to a carbon daemon over TCP or UDP.
+	 * 
+	 * @param transport
+	 */
+	public HostedGraphiteReporter(MetricsTransport transport) {
+		this.urlFetchTransport = null;
+		this.transport = transport;
+	}
+
+	/**
+	 * Sets the statistics reported for every histogram and timer, defaults to the median, 95th, 98th and 99th percentiles.
+	 * 
+	 * @param statistics
+	 */
+	public void setSnapshotStatistics(List<SnapshotStatistic> statistics) {
+		this.snapshotStatistics = statistics.toArray(new SnapshotStatistic[statistics.size()]);
+	}
+
+	public List<SnapshotStatistic> getSnapshotStatistics() {
+		return Arrays.asList(snapshotStatistics.clone());
+	}
+
+	/**
+	 * Sets the maximum number of metric name prefixes kept in the name cache, least recently reported names are evicted first. Defaults to
+	 * 100000.
+	 * 
+	 * @param maxSize
+	 */
+	public void setNameCacheSize(int maxSize) {
+		this.nameCache = new MetricNameCache<byte[]>(maxSize);
+	}
+
+	/**
+	 * Posts payloads in chunks of whole lines of at most maxChunkBytes using asynchronous fetches, with at most maxInFlight requests
+	 * outstanding. By default each report is posted as a single blocking request.
+	 * 
+	 * @param maxChunkBytes
+	 * @param maxInFlight
+	 */
+	public void setChunkedPosting(int maxChunkBytes, int maxInFlight) {
+		urlFetchTransport().setChunkedPosting(maxChunkBytes, maxInFlight);
+	}
+
+	/**
+	 * Gzip compresses payloads (or chunks when posting in chunks) of at least thresholdBytes and marks them with a
+	 * <code>Content-Encoding: gzip</code> header. Smaller payloads are sent uncompressed. A negative threshold, the default, disables
+	 * compression.
+	 * 
+	 * @param thresholdBytes
+	 */
+	public void setGzipThreshold(int thresholdBytes) {
+		urlFetchTransport().setGzipThreshold(thresholdBytes);
+	}
+
+	private URLFetchTransport urlFetchTransport() {
+		if (urlFetchTransport == null) {
+			throw new IllegalStateException("Only supported when reporting through URLFetch");
+		}
+		return urlFetchTransport;
+	}
+
+	/**
+	 * Makes {@link #reportMetrics(Map, Long)} collect large registries in up to parallelism slices at once, the calling thread collecting
+	 * one and executor, for instance a ForkJoinPool, the others. Only registries of at least {@value ParallelCollector#MIN_SLICE} metrics a
+	 * slice are split and the report sent is the same as collecting on one thread. The executor is not shut down by {@link #close()}. A
+	 * parallelism below two collects on the calling thread, the default.
+	 * 
+	 * @param executor
+	 * @param parallelism
+	 */
+	public synchronized void setParallelCollection(ExecutorService executor, int parallelism) {
+		collectionParallelism = Math.max(parallelism, 1);
+		newEncoderPool();
+		parallelCollector = parallelism < 2 ? null : new ParallelCollector(this, executor, parallelism);
+	}
+
+	/**
+	 * Makes {@link #reportMetrics(Map, Long)} send only the lines whose value changed since they were last sent, each call counting as one
+	 * report. Unchanged lines are still resent once every heartbeatReports reports so Graphite does not see gaps. A report that is dropped
+	 * is not counted as sent, its changes go out with the next report. A heartbeat below one disables delta reporting, the default.
+	 * 
+	 * @param heartbeatReports
+	 * @param counterDeltas
+	 *            send counter counts as the change since the previous report rather than the absolute count
+	 */
+	public void setDeltaReporting(int heartbeatReports, boolean counterDeltas) {
+		this.deltaFilter = heartbeatReports < 1 ? null : new DeltaFilter(this, heartbeatReports, counterDeltas);
+	}
+
+	/**
+	 * Sends reports in carbon's pickle protocol, as length prefixed frames of at most maxFrameEntries datapoints, instead of the line
+	 * protocol. Pickle is only understood by carbon's pickle receiver, so this needs a {@link TcpTransport} without a line prefix and is
+	 * rejected for the HTTP and UDP transports. A frame size below one switches back to the line protocol.
+	 * 
+	 * @param maxFrameEntries
+	 */
+	public synchronized void setPickleProtocol(int maxFrameEntries) {
+		if (maxFrameEntries > 0) {
+			if (urlFetchTransport != null || transport instanceof HttpTransport) {
+				throw new IllegalStateException("Hosted Graphite only accepts the line protocol");
+			} else if (transport instanceof UdpTransport || (transport instanceof TcpTransport && ((TcpTransport) transport).hasLinePrefix())) {
+				// Both split the payload into lines, which would corrupt the binary frames
+				throw new IllegalStateException("Pickle needs a transport that sends the payload unchanged");
+			}
+		}
+		pickleFrameEntries = Math.max(maxFrameEntries, 0);
+		newEncoderPool();
+	}
+
+	/**
+	 * Streams each report from {@link #reportMetrics(Map, Long)}: collected values are encoded into chunks of about chunkBytes and every
+	 * full chunk is sent by a sender thread while collection continues. Collection waits while maxPendingChunks chunks are waiting to be
+	 * sent, so memory stays bounded however large the registry. Every chunk is retried and spooled on its own. A chunk size below one
+	 * encodes each report whole before sending it, the default.
+	 * 
+	 * @param chunkBytes
+	 * @param maxPendingChunks
+	 */
+	public synchronized void setPipelinedReporting(int chunkBytes, int maxPendingChunks) {
+		ReportPipeline previous = pipeline;
+		pipeline = chunkBytes < 1 ? null : new ReportPipeline(this, chunkBytes, maxPendingChunks);
+		newEncoderPool();
+		if (previous != null) {
+			// Reports already streaming through it finish first
+			previous.shutdown();
+		}
+	}
+
+	/**
+	 * Evaluates the gauges of each report from {@link #reportMetrics(Map, Long)} concurrently, on at most threads threads, before the
+	 * report is collected. A gauge that has not returned within the deadline is counted as late and reported with its last value, or
+	 * skipped if lastValue is false or it never returned. A gauge late {@value GaugeEvaluator#SLOW_AFTER} reports in a row is then only
+	 * evaluated every {@value GaugeEvaluator#SLOW_CADENCE} reports until it meets the deadline again. Threads below one evaluate each
+	 * gauge as it is collected, the default.
+	 * 
+	 * @param threads
+	 * @param deadline
+	 * @param unit
+	 * @param lastValue
+	 *            report the last value of a late gauge rather than skip it
+	 */
+	public synchronized void setConcurrentGauges(int threads, long deadline, TimeUnit unit, boolean lastValue) {
+		GaugeEvaluator previous = gaugeEvaluator;
+		gaugeEvaluator = threads < 1 ? null : new GaugeEvaluator(this, threads, unit.toNanos(deadline), lastValue);
+		if (previous != null) {
+			// Reports already evaluating through it finish first
+			previous.shutdown();
+		}
+	}
+
+	private void newEncoderPool() {
+		// Each parallel slice and each chunk waiting to be sent holds an encoder of its own
+		int maxPooled = MAX_POOLED_ENCODERS + collectionParallelism - 1 + (pipeline == null ? 0 : pipeline.getMaxPendingChunks());
+		encoders = new EncoderPool(this, maxPooled, MAX_RETAINED_ENCODER_CAPACITY, pickleFrameEntries);
+	}
+
+	/**
+	 * Sets the rules that roll metrics up before they are sent, the first rule matching a name applies. Only the rolled up metrics are
+	 * sent, after the metrics no rule matched. The metric filter applies to the rolled up names and types as well as the original ones.
+	 * 
+	 * @param rules
+	 */
+	public void setRollupRules(List<RollupRule> rules) {
+		this.rollupRules = rules.toArray(new RollupRule[rules.size()]);
+	}
+
+	/**
+	 * Sets the filter deciding which metrics, and which of their lines, are sent. Metrics it rejects are skipped before any of their values
+	 * are read. A null filter sends everything, the default.
+	 * 
+	 * @param filter
+	 */
+	public void setMetricFilter(MetricFilter filter) {
+		this.metricFilter = filter;
+	}
+
+	/**
+	 * Keeps metrics about the reporter itself in registry: the time to collect each report, which includes encoding it as lines are encoded
+	 * while they are collected, bytes and lines per report, the latency of each post, retries, failures by response code, spooled and
+	 * dropped payloads, the payloads in the spool, the pipelined chunks waiting to be sent and the metrics queued by every
+	 * {@link AsyncHostedGraphiteReporter} over this reporter. All are named under {@link #SELF_METRICS_DOMAIN}. A null registry stops
+	 * recording them, the default.
+	 * 
+	 * @param registry
+	 * @param reported
+	 *            add them to every report, as they stood before it, unless the report already includes them
+	 */
+	public void setSelfMetrics(MetricsRegistry registry, boolean reported) {
+		ReporterMetrics metrics = registry == null ? null : new ReporterMetrics(registry, reported, this);
+		if (urlFetchTransport != null) {
+			urlFetchTransport.setMetrics(metrics);
+		}
+		selfMetrics = metrics;
+	}
+
+	/**
+	 * @return the number of payloads waiting in the spool
+	 */
+	int getSpoolDepth() {
+		MetricsSpool current = spool;
+		return current == null ? 0 : current.size();
+	}
+
+	/**
+	 * @return the number of pipelined chunks waiting to be sent
+	 */
+	int getPipelineDepth() {
+		ReportPipeline current = pipeline;
+		return current == null ? 0 : current.getPendingChunks();
+	}
+
+	/**
+	 * @return the number of metrics queued by the asynchronous reporters over this reporter
+	 */
+	int getAsyncDepth() {
+		int queued = 0;
+		for (AsyncHostedGraphiteReporter async : asyncReporters) {
+			queued += async.getQueued();
+		}
+		return queued;
+	}
+
+	void attach(AsyncHostedGraphiteReporter async) {
+		asyncReporters.add(async);
+	}
+
+	void detach(AsyncHostedGraphiteReporter async) {
+		asyncReporters.remove(async);
+	}
+
+	/**
+	 * Sets how failed sends are retried, by default they are not. Only connection failures, 429 and 5xx responses are retried.
+	 * 
+	 * @param retryPolicy
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Spools payloads that still could not be sent after retrying to a memory mapped file of at most maxBytes, dropping the oldest when
+	 * full, and replays them in the background once sending succeeds again. Payloads spooled by a previous process using the same file are
+	 * replayed too.
+	 * 
+	 * @param file
+	 * @param maxBytes
+	 * @param drainBytesPerSecond
+	 *            the most spooled bytes replayed per second
+	 */
+	public void setSpool(File file, int maxBytes, long drainBytesPerSecond) throws IOException {
+		setSpool(file, maxBytes, drainBytesPerSecond, Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("hosted-graphite-spool")));
+	}
+
+	/**
+	 * @param drainer
+	 *            runs the replay once a second, shut down when the spool is closed
+	 */
+	synchronized void setSpool(File file, int maxBytes, long drainBytesPerSecond, ScheduledExecutorService drainer) throws IOException {
+		closeSpool();
+		MetricsSpool opened = new MetricsSpool(file, maxBytes);
+		spoolDrainer = drainer;
+		spoolDrainer.scheduleWithFixedDelay(new SpoolDrainer(this, opened, drainBytesPerSecond), 1, 1, TimeUnit.SECONDS);
+		spool = opened;
+	}
+
+	/**
+	 * Stops replaying and closes the spool, spooled payloads stay in the file.
+	 */
+	public synchronized void closeSpool() throws IOException {
+		if (spool != null) {
+			spoolDrainer.shutdownNow();
+			spool.close();
+			spool = null;
+			spoolDrainer = null;
+		}
 	}
 
 	/**
@@ -56,7 +361,7 @@ public class HostedGraphiteReporter {
 	 * @param timeStamp
 	 */
 	public void reportMeterView(MetricName name, Meter meter, Long timeStamp) throws Exception {
-		postMetrics(createMeterRecords(name, meter, timeStamp));
+		reportMetric(name, meter, timeStamp);
 	}
 
 	/**
@@ -65,7 +370,7 @@ public class HostedGraphiteReporter {
 	 * @param timeStamp
 	 */
 	public void reportCounterView(MetricName name, Counter counter, Long timeStamp) throws Exception {
-		postMetrics(createCounterRecords(name, counter, timeStamp));
+		reportMetric(name, counter, timeStamp);
 	}
 
 	/**
@@ -74,7 +379,7 @@ public class HostedGraphiteReporter {
 	 * @param timeStamp
 	 */
 	public void reportHistogramView(MetricName name, Histogram histogram, Long timeStamp) throws Exception {
-		postMetrics(createHistogramRecords(name, histogram, timeStamp));
+		reportMetric(name, histogram, timeStamp);
 	}
 
 	/**
@@ -83,28 +388,100 @@ public class HostedGraphiteReporter {
 	 * @param timeStamp
 	 */
 	public void reportTimerView(MetricName name, Timer timer, Long timeStamp) throws Exception {
-		postMetrics(createTimerRecords(name, timer, timeStamp));
+		reportMetric(name, timer, timeStamp);
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public void reportMetrics(Map<MetricName, Metric> metrics, Long timestamp) throws IOException {
+		long timeStamp = timestamp;
+		DeltaFilter delta = deltaFilter;
+		if (delta != null) {
+			// The filter tracks report numbers, so delta reports are serialized
+			synchronized (delta) {
+				reportMetrics(metrics, timeStamp, delta);
+			}
+		} else {
+			reportMetrics(metrics, timeStamp, null);
+		}
+
+	}
 
-		List<MetricRecord> metricRecords = new ArrayList<MetricRecord>();
-		for (MetricName metricName : metrics.keySet()) {
-			Metric metric = metrics.get(metricName);
-			if (metric instanceof Counter) {
-				metricRecords.addAll(createCounterRecords(metricName, (Counter) metric, timestamp));
-			} else if (metric instanceof Meter) {
-				metricRecords.addAll(createMeterRecords(metricName, (Meter) metric, timestamp));
-			} else if (metric instanceof Histogram) {
-				metricRecords.addAll(createHistogramRecords(metricName, (Histogram) metric, timestamp));
-			} else if (metric instanceof Timer) {
-				metricRecords.addAll(createTimerRecords(metricName, (Timer) metric, timestamp));
-			} else if (metric instanceof Gauge) {
-				metricRecords.addAll(createGaugeRecords(metricName, (Gauge) metric, timestamp));
+	private void reportMetrics(Map<MetricName, Metric> metrics, long timeStamp, DeltaFilter delta) throws IOException {
+		EncoderPool pool = encoders;
+		PayloadEncoder encoder = null;
+		ReportPipeline.Stream stream = null;
+		MetricSink payload;
+		for (ReportPipeline streaming = pipeline; streaming != null && stream == null; streaming = pipeline) {
+			// A pipeline is only shut down once it was replaced, so the next read finds its replacement
+			stream = streaming.open(pool, timeStamp);
+		}
+		if (stream != null) {
+			payload = stream;
+		} else {
+			encoder = pool.acquire();
+			payload = encoder;
+		}
+		MetricSink sink = delta == null ? payload : delta.begin(payload);
+		ReporterMetrics self = selfMetrics;
+		boolean sent = false;
+		try {
+			long start = System.nanoTime();
+			RollupRule[] rules = rollupRules;
+			RollupAggregator rollup = null;
+			Map<MetricName, Metric> collected = metrics;
+			for (GaugeEvaluator gauges = gaugeEvaluator; gauges != null; gauges = gaugeEvaluator) {
+				// An evaluator is only shut down once it was replaced, so the next read finds its replacement
+				Map<MetricName, Metric> evaluated = gauges.evaluate(collected, self);
+				if (evaluated != null) {
+					collected = evaluated;
+					break;
+				}
+			}
+			if (rules.length > 0) {
+				rollup = new RollupAggregator(rules);
+				collected = rollup.absorb(this, collected);
+			}
+			ParallelCollector parallel = parallelCollector;
+			if (parallel != null && parallel.slicesFor(collected.size()) > 1) {
+				parallel.collect(collected, timeStamp, sink, pool);
+			} else {
+				for (Map.Entry<MetricName, Metric> entry : collected.entrySet()) {
+					writeMetric(sink, entry.getKey(), entry.getValue(), timeStamp);
+				}
+			}
+			if (rollup != null) {
+				rollup.writeTo(this, sink, timeStamp);
+			}
+			if (self != null) {
+				for (Map.Entry<MetricName, Metric> entry : self.getReportedMetrics().entrySet()) {
+					if (!metrics.containsKey(entry.getKey())) {
+						writeMetric(sink, entry.getKey(), entry.getValue(), timeStamp);
+					}
+				}
+				if (stream != null) {
+					stream.finish();
+				} else {
+					encoder.finish();
+				}
+				self.collect.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+				self.bytes.update(stream != null ? stream.size() : encoder.size());
+				self.lines.update(stream != null ? stream.lines() : encoder.lines());
+			}
+			if (stream != null) {
+				stream.close(delta == null);
+			} else if (encoder.size() > 0 || delta == null) {
+				sent = post(encoder, timeStamp);
+			}
+		} finally {
+			if (stream != null) {
+				stream.release();
+				sent = stream.isDelivered();
+			} else {
+				pool.release(encoder);
+			}
+			if (delta != null) {
+				delta.end(sent);
 			}
 		}
-		postMetrics(metricRecords);
 
 	}
 
@@ -114,53 +491,136 @@ public class HostedGraphiteReporter {
 	 * @param timeStamp
 	 */
 	public <T> void reportGaugeView(MetricName name, Gauge<T> gauge, Long timeStamp) throws Exception {
-		postMetrics(createGaugeRecords(name, gauge, timeStamp));
+		reportMetric(name, gauge, timeStamp);
+	}
+
+	private void reportMetric(MetricName name, Metric metric, Long timeStamp) throws IOException {
+		EncoderPool pool = encoders;
+		PayloadEncoder encoder = pool.acquire();
+		try {
+			writeMetric(encoder, name, metric, timeStamp);
+			// Nothing to send if the filter rejected the metric
+			if (encoder.size() > 0) {
+				post(encoder, timeStamp);
+			}
+		} finally {
+			pool.release(encoder);
+		}
 	}
 
-	private List<MetricRecord> createMeterRecords(MetricName name, Meter meter, Long timeStamp) {
-		List<MetricRecord> metrics = new ArrayList<MetricRecord>();
-		metrics.add(new MetricRecord(name, "count", String.valueOf(meter.getCount()), timeStamp));
-		metrics.add(new MetricRecord(name, "meanRate", String.valueOf(meter.getMeanRate()), timeStamp));
-		metrics.add(new MetricRecord(name, "oneMinuteRate", String.valueOf(meter.getOneMinuteRate()), timeStamp));
-		metrics.add(new MetricRecord(name, "fiveMinuteRate", String.valueOf(meter.getFiveMinuteRate()), timeStamp));
-		metrics.add(new MetricRecord(name, "fifteenMinuteRate", String.valueOf(meter.getFifteenMinuteRate()), timeStamp));
-		return metrics;
+	/**
+	 * @return false if the filter rejects the metric
+	 */
+	boolean isReported(MetricName name, Metric metric) {
+		MetricFilter filter = metricFilter;
+		return filter == null || filter.selectionFor(this, name, metric) != null;
 	}
 
-	private List<MetricRecord> createCounterRecords(MetricName name, Counter counter, Long timeStamp) {
-		List<MetricRecord> metrics = new ArrayList<MetricRecord>();
-		metrics.add(new MetricRecord(name, "count", String.valueOf(counter.getCount()), timeStamp));
-		return metrics;
+	@SuppressWarnings("rawtypes")
+	void writeMetric(MetricSink sink, MetricName name, Metric metric, long timeStamp) throws IOException {
+		sink = selectedSink(sink, name, metric);
+		if (sink == null) {
+			return;
+		}
+		if (metric instanceof Counter) {
+			writeCounter(sink, name, (Counter) metric, timeStamp);
+		} else if (metric instanceof Meter) {
+			writeMeter(sink, name, (Meter) metric, timeStamp);
+		} else if (metric instanceof Histogram) {
+			writeHistogram(sink, name, (Histogram) metric, timeStamp);
+		} else if (metric instanceof Timer) {
+			writeTimer(sink, name, (Timer) metric, timeStamp);
+		} else if (metric instanceof Gauge) {
+			writeGauge(sink, name, (Gauge) metric, timeStamp);
+		}
 	}
 
-	private List<MetricRecord> createHistogramRecords(MetricName name, Histogram histogram, Long timeStamp) {
-		List<MetricRecord> metrics = new ArrayList<MetricRecord>();
-		metrics.add(new MetricRecord(name, "count", String.valueOf(histogram.getCount()), timeStamp));
-		metrics.add(new MetricRecord(name, "mean", String.valueOf(histogram.getMean()), timeStamp));
-		metrics.add(new MetricRecord(name, "median", String.valueOf(histogram.getSnapshot().getMedian()), timeStamp));
+	private void writeMeter(MetricSink sink, MetricName name, Meter meter, long timeStamp) throws IOException {
+		writeMeter(sink, name, meter.getCount(), meter.getMeanRate(), meter.getOneMinuteRate(), meter.getFiveMinuteRate(),
+				meter.getFifteenMinuteRate(), timeStamp);
+	}
 
-		metrics.add(new MetricRecord(name, "95percentile", String.valueOf(histogram.getSnapshot().get95thPercentile()), timeStamp));
-		metrics.add(new MetricRecord(name, "98percentile", String.valueOf(histogram.getSnapshot().get98thPercentile()), timeStamp));
-		metrics.add(new MetricRecord(name, "99percentile", String.valueOf(histogram.getSnapshot().get99thPercentile()), timeStamp));
+	void writeMeter(MetricSink sink, MetricName name, long count, double meanRate, double oneMinuteRate, double fiveMinuteRate,
+			double fifteenMinuteRate, long timeStamp) throws IOException {
+		sink.write(name, MetricPostfix.COUNT, count, timeStamp);
+		sink.write(name, MetricPostfix.MEAN_RATE, meanRate, timeStamp);
+		sink.write(name, MetricPostfix.ONE_MINUTE_RATE, oneMinuteRate, timeStamp);
+		sink.write(name, MetricPostfix.FIVE_MINUTE_RATE, fiveMinuteRate, timeStamp);
+		sink.write(name, MetricPostfix.FIFTEEN_MINUTE_RATE, fifteenMinuteRate, timeStamp);
+	}
 
-		return metrics;
+	private void writeCounter(MetricSink sink, MetricName name, Counter counter, long timeStamp) throws IOException {
+		sink.write(name, MetricPostfix.COUNTER, counter.getCount(), timeStamp);
 	}
 
-	private List<MetricRecord> createTimerRecords(MetricName name, Timer timer, Long timeStamp) {
-		List<MetricRecord> metrics = new ArrayList<MetricRecord>();
-		metrics.addAll(createMeterRecords(name, timer.getMeter(), timeStamp));
-		metrics.add(new MetricRecord(name, "mean", String.valueOf(timer.getMean()), timeStamp));
-		metrics.add(new MetricRecord(name, "median", String.valueOf(timer.getSnapshot().getMedian()), timeStamp));
-		metrics.add(new MetricRecord(name, "95percentile", String.valueOf(timer.getSnapshot().get95thPercentile()), timeStamp));
-		metrics.add(new MetricRecord(name, "98percentile", String.valueOf(timer.getSnapshot().get98thPercentile()), timeStamp));
-		metrics.add(new MetricRecord(name, "99percentile", String.valueOf(timer.getSnapshot().get99thPercentile()), timeStamp));
-		return metrics;
+	private void writeHistogram(MetricSink sink, MetricName name, Histogram histogram, long timeStamp) throws IOException {
+		sink.write(name, MetricPostfix.COUNT, histogram.getCount(), timeStamp);
+		sink.write(name, MetricPostfix.MEAN, histogram.getMean(), timeStamp);
+		if (isSnapshotSelected(sink)) {
+			writeSnapshot(sink, name, histogram.getSnapshot(), timeStamp);
+		}
 	}
 
-	private <T> List<MetricRecord> createGaugeRecords(MetricName name, Gauge<T> gauge, Long timeStamp) {
-		List<MetricRecord> metrics = new ArrayList<MetricRecord>();
-		metrics.add(new MetricRecord(name, "value", String.valueOf(gauge.getValue()), timeStamp));
-		return metrics;
+	private void writeTimer(MetricSink sink, MetricName name, Timer timer, long timeStamp) throws IOException {
+		writeMeter(sink, name, timer.getMeter(), timeStamp);
+		sink.write(name, MetricPostfix.MEAN, timer.getMean(), timeStamp);
+		if (isSnapshotSelected(sink)) {
+			writeSnapshot(sink, name, timer.getSnapshot(), timeStamp);
+		}
+	}
+
+	/**
+	 * @return sink narrowed to the lines the filter selects for the metric, or null if the filter rejects it
+	 */
+	MetricSink selectedSink(MetricSink sink, MetricName name, Metric metric) {
+		MetricFilter filter = metricFilter;
+		if (filter != null) {
+			MetricFilter.Selection selection = filter.selectionFor(this, name, metric);
+			if (selection == null) {
+				return null;
+			} else if (!selection.isAll()) {
+				return selection.filter(sink);
+			}
+		}
+		return sink;
+	}
+
+	/**
+	 * @return false if the sink drops every statistic, so the snapshot need not be taken
+	 */
+	boolean isSnapshotSelected(MetricSink sink) {
+		return !(sink instanceof MetricFilter.SelectingSink)
+				|| ((MetricFilter.SelectingSink) sink).getSelection().selectsAny(snapshotStatistics);
+	}
+
+	/**
+	 * @return false if the filter selects no statistic of the metric's snapshot, so the snapshot need not be taken
+	 */
+	boolean isSnapshotSelected(MetricName name, Metric metric) {
+		MetricFilter filter = metricFilter;
+		MetricFilter.Selection selection = filter == null ? MetricFilter.Selection.ALL : filter.selectionFor(this, name, metric);
+		return selection != null && selection.selectsAny(snapshotStatistics);
+	}
+
+	/**
+	 * Every statistic is derived from the one snapshot, taking a snapshot copies and sorts the whole reservoir.
+	 */
+	void writeSnapshot(MetricSink sink, MetricName name, Snapshot snapshot, long timeStamp) throws IOException {
+		for (SnapshotStatistic statistic : snapshotStatistics) {
+			sink.write(name, statistic.getMetricPostfix(), statistic.valueOf(snapshot), timeStamp);
+		}
+	}
+
+	private <T> void writeGauge(MetricSink sink, MetricName name, Gauge<T> gauge, long timeStamp) throws IOException {
+		T value = gauge.getValue();
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			sink.write(name, MetricPostfix.VALUE, ((Number) value).longValue(), timeStamp);
+		} else if (value instanceof Double) {
+			sink.write(name, MetricPostfix.VALUE, ((Double) value).doubleValue(), timeStamp);
+		} else {
+			// Floats print differently once widened to double, so they keep their own string form
+			sink.write(name, MetricPostfix.VALUE, String.valueOf(value), timeStamp);
+		}
 	}
 
 	protected String sanitizeName(MetricName name) {
@@ -177,25 +637,232 @@ public class HostedGraphiteReporter {
 		return s.replace(' ', '-');
 	}
 
+	/**
+	 * @param name
+	 * @return the encoded <code>applicationId.sanitized.name</code> prefix, built once per name and cached
+	 */
+	byte[] prefixFor(MetricName name) {
+		MetricNameCache<byte[]> cache = nameCache;
+		byte[] prefix = cache.get(name);
+		if (prefix == null) {
+			prefix = (SystemProperty.applicationId.get() + "." + sanitizeName(name)).getBytes(MetricPostfix.UTF8);
+			cache.put(name, prefix);
+		}
+		return prefix;
+	}
+
+	/**
+	 * Posts arbitrary records, values are sent exactly as given.
+	 * 
+	 * @param metrics
+	 */
 	public void postMetrics(List<MetricRecord> metrics) throws IOException {
-		HTTPRequest request = new HTTPRequest(hostedGraphiteUrl, HTTPMethod.POST);
-		request.getFetchOptions().setDeadline(requestTimeout);
-		request.setHeader(authHeader);
-		StringBuilder metricsPayload = new StringBuilder();
-		for (MetricRecord metricRecord : metrics) {
-			metricsPayload.append(SystemProperty.applicationId.get()).append('.').append(sanitizeName(metricRecord.getName()))
-					.append(metricRecord.getPostFix()).append(" ").append(metricRecord.getValue()).append(" ").append(metricRecord.getTimeStamp()).append("\n");
+		EncoderPool pool = encoders;
+		PayloadEncoder encoder = pool.acquire();
+		try {
+			for (MetricRecord metricRecord : metrics) {
+				encoder.write(metricRecord.getName(), metricRecord.getMetricPostfix(), metricRecord.getValue(), metricRecord.getTimeStamp());
+			}
+			post(encoder, metrics.isEmpty() ? 0 : metrics.get(0).getTimeStamp());
+		} finally {
+			pool.release(encoder);
 		}
-		if (log.isLoggable(Level.FINE)) {
-			log.log(Level.FINE, metricsPayload.toString());
+	}
+
+	/**
+	 * Posts values recorded earlier, in one payload.
+	 * 
+	 * @param batch
+	 */
+	void postRecorded(List<RecordedValues> batch) throws IOException {
+		EncoderPool pool = encoders;
+		PayloadEncoder encoder = pool.acquire();
+		try {
+			for (RecordedValues values : batch) {
+				values.replay(encoder);
+			}
+			post(encoder, batch.isEmpty() ? 0 : batch.get(0).getTimeStamp(0));
+		} finally {
+			pool.release(encoder);
+		}
+	}
+
+	/**
+	 * @return true if the payload was delivered, in part when posted in chunks, or spooled, false if all of it was dropped
+	 */
+	boolean post(PayloadEncoder encoder, long timeStamp) throws IOException {
+		encoder.finish();
+		logPayload(encoder);
+		return send(encoder.buffer(), 0, encoder.size(), timeStamp, 0);
+	}
+
+	/**
+	 * Sends a payload, retrying as the retry policy allows and spooling it if it still could not be sent. Payloads rejected with a response
+	 * that will not change on a retry are dropped. Every rejection is logged here, whatever the transport.
+	 * 
+	 * @param attempts
+	 *            the number of attempts already made
+	 * @return false if the payload was dropped, or every chunk of it
+	 */
+	private boolean send(byte[] payload, int offset, int length, long timeStamp, int attempts) throws IOException {
+		RetryPolicy retry = retryPolicy;
+		ReporterMetrics self = selfMetrics;
+		IOException failure = null;
+		for (int attempt = attempts; attempt < retry.getMaxAttempts(); attempt++) {
+			if (attempt > 0 && !backoff(retry, attempt)) {
+				break;
+			}
+			if (attempt > 0 && self != null) {
+				self.retries.inc();
+			}
+			try {
+				sendOnce(self, payload, offset, length);
+				return true;
+			} catch (PartialSendException e) {
+				boolean delivered = e.isDelivered();
+				for (ChunkResult chunk : e.getFailedChunks()) {
+					logRejected(chunk);
+					if (self != null) {
+						self.failure(chunk.getResponseCode());
+					}
+					if (retry.isRetryable(chunk.getResponseCode())) {
+						// Counted as dropped by the nested send if it gives up
+						delivered |= send(payload, chunk.getOffset(), chunk.getLength(), timeStamp, attempt + 1);
+					} else if (self != null) {
+						self.dropped.inc();
+					}
+				}
+				return delivered;
+			} catch (IOException e) {
+				failure = e;
+				if (e instanceof HttpStatusException) {
+					log.severe(e.getMessage());
+				}
+				if (self != null) {
+					self.failure(e instanceof HttpStatusException ? ((HttpStatusException) e).getResponseCode() : ChunkResult.NO_RESPONSE);
+				}
+				if (!isRetryable(e)) {
+					if (self != null) {
+						self.dropped.inc();
+					}
+					return false;
+				}
+			}
 		}
+		MetricsSpool current = spool;
+		if (current != null) {
+			log.warning("Spooling " + length + " bytes that could not be sent");
+			current.append(Arrays.copyOfRange(payload, offset, offset + length), timeStamp);
+			if (self != null) {
+				self.spooled.inc();
+			}
+			return true;
+		}
+		if (self != null) {
+			self.dropped.inc();
+		}
+		if (failure != null && !(failure instanceof HttpStatusException)) {
+			throw failure;
+		}
+		return false;
+	}
 
-		request.setPayload(metricsPayload.toString().getBytes());
-		HTTPResponse response = fetcher.fetch(request);
-		if (response.getResponseCode() != 202) {
-			log.severe("Unable to send update error code: " + response.getResponseCode() + " Text: " + new String(response.getContent()));
+	private static void logRejected(ChunkResult chunk) {
+		if (chunk.getFailure() != null) {
+			log.log(Level.SEVERE, "Unable to send update of " + chunk.getLength() + " bytes", chunk.getFailure());
+		} else {
+			log.severe("Unable to send update error code: " + chunk.getResponseCode() + " Text: " + chunk.getResponseText());
 		}
+	}
 
+	private void sendOnce(ReporterMetrics self, byte[] payload, int offset, int length) throws IOException {
+		if (self == null || transport == urlFetchTransport) {
+			// URLFetch times each of its requests itself
+			transport.send(payload, offset, length);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			transport.send(payload, offset, length);
+		} finally {
+			self.post.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private boolean backoff(RetryPolicy retry, int failedAttempts) {
+		try {
+			Thread.sleep(retry.backoffMillis(failedAttempts));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private boolean isRetryable(IOException e) {
+		return !(e instanceof HttpStatusException) || retryPolicy.isRetryable(((HttpStatusException) e).getResponseCode());
+	}
+
+	/**
+	 * Sends a spooled payload once. When only some of its chunks were delivered, the failed chunks that may succeed later are appended to
+	 * the spool as records of their own, so replaying them again does not duplicate the delivered chunks.
+	 * 
+	 * @param spool
+	 *            the spool the record was read from
+	 * @param record
+	 * @return true if the payload was delivered, rejected for good or spooled again in part, false if it should be replayed again later
+	 */
+	boolean replay(MetricsSpool spool, MetricsSpool.Record record) {
+		byte[] payload = record.getPayload();
+		try {
+			transport.send(payload, 0, payload.length);
+			return true;
+		} catch (PartialSendException e) {
+			if (!e.isDelivered()) {
+				log.log(Level.WARNING, "Unable to send spooled update", e);
+				return false;
+			}
+			for (ChunkResult chunk : e.getFailedChunks()) {
+				logRejected(chunk);
+				if (retryPolicy.isRetryable(chunk.getResponseCode())) {
+					spool.append(Arrays.copyOfRange(payload, chunk.getOffset(), chunk.getOffset() + chunk.getLength()), record.getTimeStamp());
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			if (isRetryable(e)) {
+				log.log(Level.WARNING, "Unable to send spooled update", e);
+				return false;
+			}
+			log.warning("Dropping spooled update: " + e.getMessage());
+			return true;
+		}
+	}
+
+	/**
+	 * Stops the sender and gauge threads, closes the spool and the transport.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (pipeline != null) {
+				ReportPipeline previous = pipeline;
+				pipeline = null;
+				previous.shutdown();
+			}
+			if (gaugeEvaluator != null) {
+				GaugeEvaluator previous = gaugeEvaluator;
+				gaugeEvaluator = null;
+				previous.shutdown();
+			}
+		}
+		closeSpool();
+		transport.close();
+	}
+
+	private void logPayload(PayloadEncoder encoder) {
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, encoder.toString());
+		}
 	}
 
 }
@@ -0,0 +1,25 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an HTTP receiver answers with anything but 202 Accepted.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+public class HttpStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+	private final int responseCode;
+
+	public HttpStatusException(int responseCode, String responseText) {
+		super("Unable to send update error code: " + responseCode + " Text: " + responseText);
+		this.responseCode = responseCode;
+	}
+
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+}
@@ -0,0 +1,148 @@
+package com.techtraits.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import com.google.api.client.util.Base64;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Posts line protocol to the Hosted Graphite HTTP interface with the JDK's {@link HttpURLConnection}, for running outside App Engine.
+ * Every response is read to the end so its connection goes back to the JDK's keep-alive pool and is reused by the next request, at most
+ * <code>http.maxConnections</code> (default 5) idle connections are kept. The request is buffered rather than streamed so its headers
+ * and body leave in one write, a streamed body waits on the acknowledgement of the headers, and so the JDK can resend it once if a kept
+ * alive connection turns out to be closed. The JDK client only speaks HTTP/1.1.
+ *
+ * @author Usman Ismail
+ *
+ */
+public class HttpTransport implements MetricsTransport {
+
+	private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+	private static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+	private final URL url;
+	private final String authorization;
+	private volatile int connectTimeoutMillis;
+	private volatile int readTimeoutMillis;
+	private volatile int gzipThreshold = -1;
+
+	/**
+	 * @param hostedGraphiteSecret
+	 *            the API key
+	 * @param hostedGraphiteUrl
+	 */
+	@Inject
+	public HttpTransport(@Named("hosted.graphite.key") String hostedGraphiteSecret, @Named("hosted.graphite.url") String hostedGraphiteUrl)
+			throws UnsupportedEncodingException, MalformedURLException {
+		this(hostedGraphiteSecret, hostedGraphiteUrl, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param hostedGraphiteSecret
+	 *            the API key
+	 * @param hostedGraphiteUrl
+	 * @param connectTimeoutMillis
+	 * @param readTimeoutMillis
+	 *            the longest to wait for the response
+	 */
+	public HttpTransport(String hostedGraphiteSecret, String hostedGraphiteUrl, int connectTimeoutMillis, int readTimeoutMillis)
+			throws UnsupportedEncodingException, MalformedURLException {
+		this.url = new URL(hostedGraphiteUrl);
+		this.authorization = "Basic " + Base64.encodeBase64String((hostedGraphiteSecret + ":foo").getBytes("ISO-8859-1"));
+		setTimeouts(connectTimeoutMillis, readTimeoutMillis);
+	}
+
+	/**
+	 * Injected from <code>hosted.graphite.connect.timeout</code> and <code>hosted.graphite.read.timeout</code> when both are bound.
+	 *
+	 * @param connectTimeoutMillis
+	 * @param readTimeoutMillis
+	 */
+	@Inject(optional = true)
+	public void setTimeouts(@Named("hosted.graphite.connect.timeout") int connectTimeoutMillis,
+			@Named("hosted.graphite.read.timeout") int readTimeoutMillis) {
+		if (connectTimeoutMillis < 0 || readTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Timeouts must not be negative");
+		}
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	/**
+	 * Gzip compresses payloads of at least thresholdBytes and marks them with a <code>Content-Encoding: gzip</code> header. A negative
+	 * threshold, the default, disables compression.
+	 *
+	 * @param thresholdBytes
+	 */
+	public void setGzipThreshold(int thresholdBytes) {
+		this.gzipThreshold = thresholdBytes;
+	}
+
+	@Override
+	public void send(byte[] payload, int offset, int length) throws IOException {
+		int threshold = gzipThreshold;
+		if (threshold >= 0 && length >= threshold) {
+			byte[] compressed = Gzip.compress(payload, offset, length);
+			post(compressed, 0, compressed.length, true);
+		} else {
+			post(payload, offset, length, false);
+		}
+	}
+
+	private void post(byte[] body, int offset, int length, boolean gzipped) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(connectTimeoutMillis);
+		connection.setReadTimeout(readTimeoutMillis);
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setUseCaches(false);
+		connection.setRequestProperty("Authorization", authorization);
+		if (gzipped) {
+			connection.setRequestProperty("Content-Encoding", "gzip");
+		}
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(body, offset, length);
+		} finally {
+			out.close();
+		}
+		int responseCode = connection.getResponseCode();
+		String responseText = readResponse(responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream());
+		if (responseCode != 202) {
+			throw new HttpStatusException(responseCode, responseText);
+		}
+	}
+
+	/**
+	 * Reads the response to the end and closes it, which returns the connection to the keep-alive pool.
+	 */
+	private static String readResponse(InputStream in) throws IOException {
+		if (in == null) {
+			return "";
+		}
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		byte[] buffer = new byte[512];
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				text.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return new String(text.toByteArray(), MetricPostfix.UTF8);
+	}
+
+	@Override
+	public void close() {
+		// Pooled connections belong to the JDK and time out on their own
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.techtraits.metrics;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+
+/**
+ * Binds {@link HostedGraphiteReporter} to report through an injected {@link HttpTransport} rather than URLFetch, for running outside App
+ * Engine. The transport is built from the same <code>hosted.graphite.key</code> and <code>hosted.graphite.url</code> constants as the
+ * reporter, plus <code>hosted.graphite.connect.timeout</code> and <code>hosted.graphite.read.timeout</code> when both are bound.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+public class HttpTransportModule extends AbstractModule {
+
+	@Override
+	protected void configure() {
+		// Everything is provided below
+	}
+
+	@Provides
+	@Singleton
+	HostedGraphiteReporter reporter(HttpTransport transport) {
+		return new HostedGraphiteReporter(transport);
+	}
+
+}
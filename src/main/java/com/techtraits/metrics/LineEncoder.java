@@ -0,0 +1,140 @@
+package com.techtraits.metrics;
+
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Encodes values in the Graphite line protocol (<code>prefix.postfix value timestamp\n</code>) directly into a growable byte buffer. Numbers
+ * are written digit by digit, doubles go through a reused {@link StringBuilder}, so encoding a line allocates nothing once the buffer has
+ * grown to size. The output is identical to building the line with {@link String#valueOf}.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class LineEncoder extends PayloadEncoder {
+
+	private static final byte[] MIN_LONG = String.valueOf(Long.MIN_VALUE).getBytes(MetricPostfix.UTF8);
+	private static final byte[] POINT_ZERO = ".0".getBytes(MetricPostfix.UTF8);
+	// Double.toString switches to computerized scientific notation outside [10^-3, 10^7)
+	private static final double PLAIN_NOTATION_LIMIT = 1e7;
+
+	private final HostedGraphiteReporter reporter;
+	private final StringBuilder scratch = new StringBuilder(32);
+	// Metrics write several lines in a row, so the prefix of the last name saves most lookups in the shared name cache
+	private MetricName lastName;
+	private byte[] lastPrefix;
+
+	/**
+	 * @param reporter
+	 *            supplies the cached name prefixes
+	 * @param initialCapacity
+	 */
+	LineEncoder(HostedGraphiteReporter reporter, int initialCapacity) {
+		super(initialCapacity);
+		this.reporter = reporter;
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, long value, long timeStamp) {
+		writeName(name, postfix);
+		writeLong(value);
+		writeTimeStamp(timeStamp);
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, double value, long timeStamp) {
+		writeName(name, postfix);
+		writeDouble(value);
+		writeTimeStamp(timeStamp);
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, String value, long timeStamp) {
+		writeName(name, postfix);
+		writeString(value);
+		writeTimeStamp(timeStamp);
+	}
+
+	private void writeName(MetricName name, MetricPostfix postfix) {
+		if (name != lastName) {
+			lastPrefix = reporter.prefixFor(name);
+			lastName = name;
+		}
+		writeBytes(lastPrefix);
+		writeBytes(postfix.getBytes());
+		writeByte(' ');
+	}
+
+	private void writeTimeStamp(long timeStamp) {
+		writeByte(' ');
+		writeLong(timeStamp);
+		writeByte('\n');
+		lines++;
+	}
+
+	void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeBytes(MIN_LONG);
+			return;
+		}
+		long remaining = value;
+		if (remaining < 0) {
+			writeByte('-');
+			remaining = -remaining;
+		}
+		int digits = 1;
+		for (long bound = 10; digits < 19 && remaining >= bound; bound *= 10) {
+			digits++;
+		}
+		byte[] buffer = ensureCapacity(digits);
+		int position = count + digits;
+		do {
+			buffer[--position] = (byte) ('0' + (remaining % 10));
+			remaining /= 10;
+		} while (remaining != 0);
+		count += digits;
+	}
+
+	void writeDouble(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < PLAIN_NOTATION_LIMIT && (value != 0d || 1d / value > 0)) {
+			// Whole numbers such as counts and millisecond timings are printed as "300000.0"
+			writeLong((long) value);
+			writeBytes(POINT_ZERO);
+			return;
+		}
+		scratch.setLength(0);
+		scratch.append(value);
+		writeAscii(scratch);
+	}
+
+	void writeString(String value) {
+		String text = String.valueOf(value);
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) > 0x7f) {
+				writeBytes(text.getBytes(MetricPostfix.UTF8));
+				return;
+			}
+		}
+		writeAscii(text);
+	}
+
+	private void writeAscii(CharSequence text) {
+		int length = text.length();
+		byte[] buffer = ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			buffer[count++] = (byte) text.charAt(i);
+		}
+	}
+
+	@Override
+	void reset() {
+		super.reset();
+		lastName = null;
+		lastPrefix = null;
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer(), 0, count, MetricPostfix.UTF8);
+	}
+
+}
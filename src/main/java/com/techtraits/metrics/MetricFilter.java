@@ -0,0 +1,233 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Decides which metrics are reported, and which of their lines, before any of their values are read. Names are matched as their sanitized
+ * <code>domain.type[.scope].name</code> path against glob rules, <code>*</code> matching any run of characters and <code>?</code> any one
+ * character. A metric is reported if it matches an allow rule, or there are none, and matches no deny rule. The rules are compiled into one
+ * trie sharing common prefixes and the decision for each {@link MetricName} is cached, so a metric costs one cache lookup once decided.
+ * <p>
+ * Attributes restrict the lines sent for a type of metric to those whose postfix is listed, for instance <code>count</code> and
+ * <code>99percentile</code> for timers. Snapshots are not taken when none of their statistics are selected.
+ * </p>
+ *
+ * @author Usman Ismail
+ *
+ */
+public final class MetricFilter {
+
+	private static final int DEFAULT_CACHE_SIZE = 100000;
+	private static final int ALLOW = 1;
+	private static final int DENY = 2;
+
+	private final Node root = new Node();
+	private final boolean allowAll;
+	private final Map<Class<? extends Metric>, Set<String>> attributes = new HashMap<Class<? extends Metric>, Set<String>>();
+	private final MetricNameCache<Selection> decisions = new MetricNameCache<Selection>(DEFAULT_CACHE_SIZE);
+
+	/**
+	 * @param allow
+	 *            globs of the names to report, empty to report every name not denied
+	 * @param deny
+	 *            globs of the names never to report
+	 * @param attributes
+	 *            for each type of metric listed, the postfixes of the only lines sent, for instance Timer.class to
+	 *            <code>["count", "99percentile"]</code>
+	 */
+	public MetricFilter(List<String> allow, List<String> deny, Map<Class<? extends Metric>, List<String>> attributes) {
+		for (String glob : allow) {
+			root.add(glob, 0, ALLOW);
+		}
+		for (String glob : deny) {
+			root.add(glob, 0, DENY);
+		}
+		this.allowAll = allow.isEmpty();
+		for (Map.Entry<Class<? extends Metric>, List<String>> entry : attributes.entrySet()) {
+			this.attributes.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<String>(entry.getValue())));
+		}
+	}
+
+	/**
+	 * @return whether the path is reported
+	 */
+	boolean allows(String path) {
+		int verdict = root.match(path, 0);
+		return (verdict & DENY) == 0 && (allowAll || (verdict & ALLOW) != 0);
+	}
+
+	/**
+	 * @return the lines of the metric to report, or null to report none, decided once per name
+	 */
+	Selection selectionFor(HostedGraphiteReporter reporter, MetricName name, Metric metric) {
+		Selection selection = decisions.get(name);
+		if (selection == null) {
+			selection = Selection.NONE;
+			if (allows(reporter.sanitizeName(name))) {
+				selection = Selection.ALL;
+				for (Map.Entry<Class<? extends Metric>, Set<String>> entry : attributes.entrySet()) {
+					if (entry.getKey().isInstance(metric)) {
+						selection = new Selection(entry.getValue());
+						break;
+					}
+				}
+			}
+			decisions.put(name, selection);
+		}
+		return selection == Selection.NONE ? null : selection;
+	}
+
+	/** The lines reported for one metric, all of them or those with selected postfixes. */
+	static final class Selection {
+
+		static final Selection NONE = new Selection(Collections.<String> emptySet());
+		static final Selection ALL = new Selection(null);
+
+		private final Set<String> postfixes;
+
+		private Selection(Set<String> postfixes) {
+			this.postfixes = postfixes;
+		}
+
+		boolean isAll() {
+			return postfixes == null;
+		}
+
+		boolean selects(MetricPostfix postfix) {
+			return postfixes == null || postfixes.contains(postfix.getName());
+		}
+
+		/**
+		 * @return whether any of the statistics is selected, so a snapshot is worth taking
+		 */
+		boolean selectsAny(SnapshotStatistic[] statistics) {
+			for (SnapshotStatistic statistic : statistics) {
+				if (selects(statistic.getMetricPostfix())) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return a sink passing the selected lines on to target
+		 */
+		MetricSink filter(MetricSink target) {
+			return new SelectingSink(this, target);
+		}
+
+	}
+
+	/** Passes on only the selected lines. */
+	static final class SelectingSink implements MetricSink {
+
+		private final Selection selection;
+		private final MetricSink target;
+
+		SelectingSink(Selection selection, MetricSink target) {
+			this.selection = selection;
+			this.target = target;
+		}
+
+		Selection getSelection() {
+			return selection;
+		}
+
+		@Override
+		public void write(MetricName name, MetricPostfix postfix, long value, long timeStamp) throws IOException {
+			if (selection.selects(postfix)) {
+				target.write(name, postfix, value, timeStamp);
+			}
+		}
+
+		@Override
+		public void write(MetricName name, MetricPostfix postfix, double value, long timeStamp) throws IOException {
+			if (selection.selects(postfix)) {
+				target.write(name, postfix, value, timeStamp);
+			}
+		}
+
+		@Override
+		public void write(MetricName name, MetricPostfix postfix, String value, long timeStamp) throws IOException {
+			if (selection.selects(postfix)) {
+				target.write(name, postfix, value, timeStamp);
+			}
+		}
+
+	}
+
+	/** A trie of glob characters, wildcards are edges of their own. */
+	private static final class Node {
+
+		private final Map<Character, Node> children = new HashMap<Character, Node>();
+		private Node anyRun;
+		private Node anyChar;
+		private int verdict;
+
+		void add(String glob, int index, int rule) {
+			if (index == glob.length()) {
+				verdict |= rule;
+				return;
+			}
+			char c = glob.charAt(index);
+			if (c == '*') {
+				if (anyRun == null) {
+					anyRun = new Node();
+				}
+				int next = index + 1;
+				while (next < glob.length() && glob.charAt(next) == '*') {
+					next++;
+				}
+				anyRun.add(glob, next, rule);
+			} else if (c == '?') {
+				if (anyChar == null) {
+					anyChar = new Node();
+				}
+				anyChar.add(glob, index + 1, rule);
+			} else {
+				Node child = children.get(c);
+				if (child == null) {
+					child = new Node();
+					children.put(c, child);
+				}
+				child.add(glob, index + 1, rule);
+			}
+		}
+
+		/**
+		 * @return the rules of every glob in this subtree matching the rest of path
+		 */
+		int match(String path, int index) {
+			int matched = 0;
+			if (index == path.length()) {
+				matched |= verdict;
+			}
+			if (anyRun != null) {
+				for (int end = index; end <= path.length(); end++) {
+					matched |= anyRun.match(path, end);
+				}
+			}
+			if (index < path.length()) {
+				if (anyChar != null) {
+					matched |= anyChar.match(path, index + 1);
+				}
+				Node child = children.get(path.charAt(index));
+				if (child != null) {
+					matched |= child.match(path, index + 1);
+				}
+			}
+			return matched;
+		}
+
+	}
+
+}
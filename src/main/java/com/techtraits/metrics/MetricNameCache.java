@@ -0,0 +1,138 @@
+package com.techtraits.metrics;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * A bounded cache of a value derived from each {@link MetricName}, such as the encoded line prefix (application id and sanitized metric
+ * path). Names removed from the registry stop being used and are eventually evicted once the cache is full.
+ * <p>
+ * Lookups take no lock, so the threads of a parallel collection do not queue on the cache. Eviction is approximately least recently used:
+ * every entry remembers the number of insertions when it was last looked up, and once the cache overflows a single thread evicts the
+ * entries looked up longest ago, an eighth of the cache at a time so that eviction stays rare.
+ * </p>
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class MetricNameCache<V> {
+
+	private final int maxSize;
+	private final ConcurrentMap<MetricName, Entry<V>> entries = new ConcurrentHashMap<MetricName, Entry<V>>();
+	private final AtomicInteger size = new AtomicInteger();
+	// Advanced by each insertion rather than each lookup, so lookups only read it
+	private final AtomicLong clock = new AtomicLong();
+	private final Lock evicting = new ReentrantLock();
+
+	MetricNameCache(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param name
+	 * @return the cached value or null if there is none
+	 */
+	V get(MetricName name) {
+		Entry<V> entry = entries.get(name);
+		if (entry == null) {
+			return null;
+		}
+		long now = clock.get();
+		if (entry.lastUsed != now) {
+			entry.lastUsed = now;
+		}
+		return entry.value;
+	}
+
+	void put(MetricName name, V value) {
+		if (entries.put(name, new Entry<V>(value, clock.incrementAndGet())) == null && size.incrementAndGet() > maxSize) {
+			evict();
+		}
+	}
+
+	void remove(MetricName name) {
+		if (entries.remove(name) != null) {
+			size.decrementAndGet();
+		}
+	}
+
+	void clear() {
+		for (MetricName name : entries.keySet()) {
+			remove(name);
+		}
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Evicts the entries looked up longest ago, unless another thread already is.
+	 */
+	private void evict() {
+		if (!evicting.tryLock()) {
+			return;
+		}
+		try {
+			int excess = size.get() - (maxSize - maxSize / 8);
+			if (excess <= 0) {
+				return;
+			}
+			long[] lastUsed = new long[Math.max(size.get(), 16)];
+			int count = 0;
+			for (Entry<V> entry : entries.values()) {
+				if (count == lastUsed.length) {
+					lastUsed = Arrays.copyOf(lastUsed, count << 1);
+				}
+				lastUsed[count++] = entry.lastUsed;
+			}
+			if (count == 0) {
+				return;
+			}
+			Arrays.sort(lastUsed, 0, count);
+			excess = removeUsedBefore(lastUsed[Math.min(excess, count) - 1], excess);
+			// Entries looked up again while sorting are spared above, evict others so that the cache still shrinks
+			removeUsedBefore(Long.MAX_VALUE, excess);
+		} finally {
+			evicting.unlock();
+		}
+	}
+
+	/**
+	 * @return how many of the entries still have to be evicted
+	 */
+	private int removeUsedBefore(long oldest, int excess) {
+		for (Map.Entry<MetricName, Entry<V>> entry : entries.entrySet()) {
+			if (excess == 0) {
+				break;
+			} else if (entry.getValue().lastUsed <= oldest && entries.remove(entry.getKey(), entry.getValue())) {
+				size.decrementAndGet();
+				excess--;
+			}
+		}
+		return excess;
+	}
+
+	private static final class Entry<V> {
+
+		private final V value;
+		private volatile long lastUsed;
+
+		Entry(V value, long lastUsed) {
+			this.value = value;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.techtraits.metrics;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An interned metric postfix such as <code>.count</code> or <code>.99percentile</code>, holding both the dotted string and its encoded bytes so
+ * they are only ever built once.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class MetricPostfix {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_INTERNED = 1024;
+	private static final ConcurrentMap<String, MetricPostfix> interned = new ConcurrentHashMap<String, MetricPostfix>();
+
+	static final MetricPostfix NONE = of("");
+	static final MetricPostfix COUNT = of("count");
+	// The count of a Counter, deliberately not interned so delta reporting can tell it apart from meter and histogram counts
+	static final MetricPostfix COUNTER = new MetricPostfix("count");
+	static final MetricPostfix VALUE = of("value");
+	static final MetricPostfix MEAN = of("mean");
+	static final MetricPostfix MEAN_RATE = of("meanRate");
+	static final MetricPostfix ONE_MINUTE_RATE = of("oneMinuteRate");
+	static final MetricPostfix FIVE_MINUTE_RATE = of("fiveMinuteRate");
+	static final MetricPostfix FIFTEEN_MINUTE_RATE = of("fifteenMinuteRate");
+
+	private final String name;
+	private final String dotted;
+	private final byte[] bytes;
+
+	private MetricPostfix(String name) {
+		this.name = name;
+		this.dotted = name.length() > 0 ? "." + name : "";
+		this.bytes = dotted.getBytes(UTF8);
+	}
+
+	/**
+	 * @param name
+	 *            the postfix without the leading dot, may be null or empty for no postfix
+	 */
+	static MetricPostfix of(String name) {
+		String key = name == null ? "" : name;
+		MetricPostfix postfix = interned.get(key);
+		if (postfix == null) {
+			postfix = new MetricPostfix(key);
+			// Arbitrary postfixes from postMetrics callers should not grow the table without bound
+			if (interned.size() < MAX_INTERNED) {
+				MetricPostfix existing = interned.putIfAbsent(key, postfix);
+				if (existing != null) {
+					postfix = existing;
+				}
+			}
+		}
+		return postfix;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	String getDotted() {
+		return dotted;
+	}
+
+	/**
+	 * @return the encoded dotted postfix, callers must not modify the array
+	 */
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return dotted;
+	}
+
+}
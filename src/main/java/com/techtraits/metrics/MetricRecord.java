@@ -5,19 +5,23 @@ import com.yammer.metrics.core.MetricName;
 class MetricRecord {
 
 	private MetricName name;
-	private String postFix;
+	private MetricPostfix postFix;
 	private String value;
 	private long timeStamp;
 
 	public String getPostFix() {
-		if (postFix != null && postFix.length() > 0) {
-			return "." + postFix;
-		} else {
-			return "";
-		}
+		return postFix.getDotted();
+	}
+
+	MetricPostfix getMetricPostfix() {
+		return postFix;
 	}
 
 	public MetricRecord(MetricName name, String postFix, String value, long timestamp) {
+		this(name, MetricPostfix.of(postFix), value, timestamp);
+	}
+
+	MetricRecord(MetricName name, MetricPostfix postFix, String value, long timestamp) {
 		this.name = name;
 		this.postFix = postFix;
 		this.value = value;
@@ -49,7 +53,7 @@ class MetricRecord {
 	}
 
 	public void setPostFix(String postFix) {
-		this.postFix = postFix;
+		this.postFix = MetricPostfix.of(postFix);
 	}
 
 }
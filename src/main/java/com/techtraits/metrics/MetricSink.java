@@ -0,0 +1,22 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Receives the individual values collected from metrics, one call per reported line. Primitive values are passed as primitives so that
+ * implementations can encode them without boxing or building strings.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+interface MetricSink {
+
+	void write(MetricName name, MetricPostfix postfix, long value, long timeStamp) throws IOException;
+
+	void write(MetricName name, MetricPostfix postfix, double value, long timeStamp) throws IOException;
+
+	void write(MetricName name, MetricPostfix postfix, String value, long timeStamp) throws IOException;
+
+}
@@ -0,0 +1,227 @@
+package com.techtraits.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A bounded append only spool of payloads that could not be posted, kept in a memory mapped file so that it survives restarts. Records are
+ * written one after another around a ring, when the spool is full the oldest records are dropped to make room.
+ * <p>
+ * File layout: a header of magic, head, tail, record count and first sequence number, then the ring of records. Each record is its payload
+ * length, report timestamp, a flags byte reserved for future use and the payload. A length of {@link #WRAP} (or too little room for a record header) at the end of
+ * the ring means the next record starts at the beginning of the ring.
+ * </p>
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class MetricsSpool implements Closeable {
+
+	private static final Logger log = Logger.getLogger(MetricsSpool.class.getName());
+	private static final int MAGIC = 0x48475350; // HGSP
+	private static final int WRAP = -1;
+	private static final int HEAD_OFFSET = 4;
+	private static final int TAIL_OFFSET = 12;
+	private static final int COUNT_OFFSET = 20;
+	private static final int SEQUENCE_OFFSET = 24;
+	private static final int DATA_START = 32;
+	private static final int RECORD_HEADER = 4 + 8 + 1;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final int end;
+	private int head;
+	private int tail;
+	private int count;
+	private long firstSequence;
+	private long dropped;
+
+	/**
+	 * Opens the spool, recovering the records of a previous spool in the same file if it has the same size.
+	 * 
+	 * @param path
+	 * @param maxBytes
+	 *            the size of the spool file
+	 */
+	MetricsSpool(File path, int maxBytes) throws IOException {
+		if (maxBytes < DATA_START + RECORD_HEADER + 1) {
+			throw new IllegalArgumentException("Spool too small: " + maxBytes);
+		}
+		boolean existing = path.exists() && path.length() == maxBytes;
+		this.file = new RandomAccessFile(path, "rw");
+		this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+		this.end = maxBytes;
+		if (existing && buffer.getInt(0) == MAGIC) {
+			head = (int) buffer.getLong(HEAD_OFFSET);
+			tail = (int) buffer.getLong(TAIL_OFFSET);
+			count = buffer.getInt(COUNT_OFFSET);
+			firstSequence = buffer.getLong(SEQUENCE_OFFSET);
+		} else {
+			head = DATA_START;
+			tail = DATA_START;
+			buffer.putInt(0, MAGIC);
+			writeHeader();
+		}
+	}
+
+	/**
+	 * Appends a payload, dropping the oldest records if there is not enough room.
+	 * 
+	 * @param payload
+	 * @param timeStamp
+	 *            the timestamp of the report the payload belongs to
+	 * @return false if the payload is larger than the whole spool and was not stored
+	 */
+	synchronized boolean append(byte[] payload, long timeStamp) {
+		int size = RECORD_HEADER + payload.length;
+		if (size > end - DATA_START) {
+			log.warning("Payload of " + payload.length + " bytes is larger than the spool, dropping it");
+			dropped++;
+			return false;
+		}
+		while (true) {
+			if (count == 0) {
+				head = DATA_START;
+				tail = DATA_START;
+			}
+			boolean wrapped = count > 0 && tail <= head;
+			if (!wrapped && end - tail >= size) {
+				break;
+			} else if (!wrapped && head - DATA_START >= size) {
+				if (end - tail >= RECORD_HEADER) {
+					buffer.putInt(tail, WRAP);
+				}
+				tail = DATA_START;
+				break;
+			} else if (wrapped && head - tail >= size) {
+				break;
+			}
+			dropOldest();
+			dropped++;
+		}
+		buffer.putInt(tail, payload.length);
+		buffer.putLong(tail + 4, timeStamp);
+		buffer.put(tail + 12, (byte) 0);
+		buffer.position(tail + RECORD_HEADER);
+		buffer.put(payload);
+		tail += size;
+		count++;
+		writeHeader();
+		return true;
+	}
+
+	/**
+	 * @param maxRecords
+	 * @param maxBytes
+	 *            the most payload bytes returned, at least one record is returned regardless
+	 * @return copies of the oldest records in spool order
+	 */
+	synchronized List<Record> peek(int maxRecords, long maxBytes) {
+		List<Record> records = new ArrayList<Record>();
+		int position = head;
+		long bytes = 0;
+		for (int i = 0; i < count && records.size() < maxRecords; i++) {
+			position = normalize(position);
+			int length = buffer.getInt(position);
+			if (!records.isEmpty() && bytes + length > maxBytes) {
+				break;
+			}
+			byte[] payload = new byte[length];
+			buffer.position(position + RECORD_HEADER);
+			buffer.get(payload);
+			records.add(new Record(firstSequence + i, buffer.getLong(position + 4), payload));
+			bytes += length;
+			position += RECORD_HEADER + length;
+		}
+		return records;
+	}
+
+	/**
+	 * Removes every record up to and including the given sequence number, records already dropped to make room are skipped.
+	 * 
+	 * @param sequence
+	 */
+	synchronized void removeThrough(long sequence) {
+		while (count > 0 && firstSequence <= sequence) {
+			dropOldest();
+		}
+		writeHeader();
+	}
+
+	synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of payloads dropped because the spool was full
+	 */
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+	private void dropOldest() {
+		head = normalize(head);
+		head += RECORD_HEADER + buffer.getInt(head);
+		count--;
+		firstSequence++;
+		if (count > 0) {
+			head = normalize(head);
+		}
+	}
+
+	private int normalize(int position) {
+		if (end - position < RECORD_HEADER || buffer.getInt(position) == WRAP) {
+			return DATA_START;
+		}
+		return position;
+	}
+
+	private void writeHeader() {
+		buffer.putLong(HEAD_OFFSET, head);
+		buffer.putLong(TAIL_OFFSET, tail);
+		buffer.putInt(COUNT_OFFSET, count);
+		buffer.putLong(SEQUENCE_OFFSET, firstSequence);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		buffer.force();
+		file.close();
+	}
+
+	/**
+	 * A spooled payload.
+	 */
+	static final class Record {
+
+		private final long sequence;
+		private final long timeStamp;
+		private final byte[] payload;
+
+		Record(long sequence, long timeStamp, byte[] payload) {
+			this.sequence = sequence;
+			this.timeStamp = timeStamp;
+			this.payload = payload;
+		}
+
+		long getSequence() {
+			return sequence;
+		}
+
+		long getTimeStamp() {
+			return timeStamp;
+		}
+
+		byte[] getPayload() {
+			return payload;
+		}
+	}
+
+}
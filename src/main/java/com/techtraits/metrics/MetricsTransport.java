@@ -0,0 +1,26 @@
+package com.techtraits.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Delivers encoded Graphite line protocol to a receiver, e.g. Hosted Graphite over HTTP or a carbon daemon over TCP or UDP.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+public interface MetricsTransport extends Closeable {
+
+	/**
+	 * Sends whole lines of line protocol. Implementations must not keep a reference to the payload once they return.
+	 * 
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 *             if the lines could not be delivered, {@link HttpStatusException} if the receiver rejected them and
+	 *             {@link PartialSendException} if only some of them were delivered
+	 */
+	void send(byte[] payload, int offset, int length) throws IOException;
+
+}
@@ -0,0 +1,155 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Collects a report in contiguous slices of the registry on an executor, each slice written to its own buffer, then merges the buffers in
+ * slice order so the result is exactly what collecting on one thread would have written. Line protocol slices are encoded by their worker
+ * and merged by copying bytes; otherwise the worker records the values and they are replayed into the sink, which need not be thread safe.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class ParallelCollector {
+
+	/** Registries are only split into slices of at least this many metrics. */
+	static final int MIN_SLICE = 1024;
+
+	private final HostedGraphiteReporter reporter;
+	private final ExecutorService executor;
+	private final int parallelism;
+
+	/**
+	 * @param reporter
+	 * @param executor
+	 *            runs the slices, the calling thread collects the first slice itself
+	 * @param parallelism
+	 *            the most slices a registry is split into
+	 */
+	ParallelCollector(HostedGraphiteReporter reporter, ExecutorService executor, int parallelism) {
+		this.reporter = reporter;
+		this.executor = executor;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return the number of slices a registry of this many metrics is split into
+	 */
+	int slicesFor(int metrics) {
+		return Math.max(1, Math.min(parallelism, metrics / MIN_SLICE));
+	}
+
+	/**
+	 * Writes every metric to sink in the iteration order of metrics.
+	 *
+	 * @param metrics
+	 * @param timeStamp
+	 * @param sink
+	 * @param encoders
+	 *            supplies the encoders line protocol slices are written to
+	 */
+	@SuppressWarnings("unchecked")
+	void collect(Map<MetricName, Metric> metrics, long timeStamp, MetricSink sink, EncoderPool encoders) throws IOException {
+		Map.Entry<MetricName, Metric>[] entries = metrics.entrySet().toArray(new Map.Entry[metrics.size()]);
+		int slices = slicesFor(entries.length);
+		boolean encodeInSlice = sink instanceof LineEncoder;
+		List<Slice> pending = new ArrayList<Slice>(slices);
+		List<Future<Slice>> futures = new ArrayList<Future<Slice>>(slices);
+		boolean completed = false;
+		try {
+			for (int i = 0; i < slices; i++) {
+				int from = (int) ((long) entries.length * i / slices);
+				int to = (int) ((long) entries.length * (i + 1) / slices);
+				MetricSink target = encodeInSlice ? encoders.acquire() : new RecordedValues((to - from) * 4);
+				Slice slice = new Slice(entries, from, to, timeStamp, target);
+				pending.add(slice);
+				if (i > 0) {
+					futures.add(executor.submit(slice));
+				}
+			}
+			pending.get(0).call();
+			for (Future<Slice> future : futures) {
+				await(future);
+			}
+			completed = true;
+			for (Slice slice : pending) {
+				if (encodeInSlice) {
+					((LineEncoder) sink).append((PayloadEncoder) slice.target);
+				} else {
+					((RecordedValues) slice.target).replay(sink);
+				}
+			}
+		} finally {
+			if (!completed) {
+				for (Future<Slice> future : futures) {
+					future.cancel(false);
+				}
+			}
+			if (encodeInSlice) {
+				// After a failure other slices may still be writing to their encoders, so only ours goes back to the pool
+				int reusable = completed ? pending.size() : Math.min(1, pending.size());
+				for (int i = 0; i < reusable; i++) {
+					encoders.release((PayloadEncoder) pending.get(i).target);
+				}
+			}
+		}
+	}
+
+	private static void await(Future<Slice> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while collecting metrics");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/** Writes a contiguous range of the registry to its own sink. */
+	private final class Slice implements Callable<Slice> {
+
+		private final Map.Entry<MetricName, Metric>[] entries;
+		private final int from;
+		private final int to;
+		private final long timeStamp;
+		final MetricSink target;
+
+		Slice(Map.Entry<MetricName, Metric>[] entries, int from, int to, long timeStamp, MetricSink target) {
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+			this.timeStamp = timeStamp;
+			this.target = target;
+		}
+
+		@Override
+		public Slice call() throws IOException {
+			for (int i = from; i < to; i++) {
+				reporter.writeMetric(target, entries[i].getKey(), entries[i].getValue(), timeStamp);
+			}
+			return this;
+		}
+
+	}
+
+}
@@ -0,0 +1,43 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Thrown when a payload was sent in chunks and some of the chunks could not be delivered.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+class PartialSendException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+	private final transient List<ChunkResult> failedChunks;
+	private final int chunks;
+
+	/**
+	 * @param failedChunks
+	 * @param chunks
+	 *            the number of chunks the payload was sent in
+	 */
+	PartialSendException(List<ChunkResult> failedChunks, int chunks) {
+		super(failedChunks.size() + " of " + chunks + " chunk(s) could not be sent");
+		this.failedChunks = failedChunks;
+		this.chunks = chunks;
+	}
+
+	/**
+	 * @return the failed chunks, their offsets are into the payload that was sent
+	 */
+	List<ChunkResult> getFailedChunks() {
+		return failedChunks;
+	}
+
+	/**
+	 * @return whether any chunk was delivered
+	 */
+	boolean isDelivered() {
+		return failedChunks.size() < chunks;
+	}
+
+}
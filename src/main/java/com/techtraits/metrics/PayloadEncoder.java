@@ -0,0 +1,100 @@
+package com.techtraits.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Base for the sinks that encode a report into the payload handed to the {@link MetricsTransport}, holding the growable byte buffer they
+ * share.
+ *
+ * @author Usman Ismail
+ *
+ */
+abstract class PayloadEncoder implements MetricSink {
+
+	private byte[] buffer;
+	int count;
+	int lines;
+
+	/**
+	 * @param initialCapacity
+	 */
+	PayloadEncoder(int initialCapacity) {
+		this.buffer = new byte[Math.max(initialCapacity, 64)];
+	}
+
+	/**
+	 * Completes the payload, called once after the last write and before the buffer is sent.
+	 */
+	void finish() {
+	}
+
+	void writeByte(int b) {
+		ensureCapacity(1);
+		buffer[count++] = (byte) b;
+	}
+
+	void writeBytes(byte[] bytes) {
+		writeBytes(bytes, 0, bytes.length);
+	}
+
+	void writeBytes(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, buffer, count, length);
+		count += length;
+	}
+
+	/**
+	 * Appends everything other encoded, which must be in the same format.
+	 * 
+	 * @param other
+	 */
+	void append(PayloadEncoder other) {
+		writeBytes(other.buffer, 0, other.count);
+		lines += other.lines;
+	}
+
+	/**
+	 * Makes room for extra more bytes and returns the buffer to write them to directly, starting at {@link #size()}.
+	 */
+	final byte[] ensureCapacity(int extra) {
+		if (count + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, count + extra));
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return the number of bytes encoded since the last reset
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of values encoded since the last reset
+	 */
+	int lines() {
+		return lines;
+	}
+
+	int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return the internal buffer, only the first {@link #size()} bytes are valid
+	 */
+	byte[] buffer() {
+		return buffer;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buffer, count);
+	}
+
+	void reset() {
+		count = 0;
+		lines = 0;
+	}
+
+}
@@ -0,0 +1,173 @@
+package com.techtraits.metrics;
+
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Encodes values for carbon's pickle receiver: frames of a four byte big endian length followed by a protocol 2 pickle of a list of
+ * <code>(path, (timestamp, value))</code> tuples. Values are sent as integers or floats, string values that are not numbers are skipped as
+ * carbon could not store them.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class PickleEncoder extends PayloadEncoder {
+
+	static final int PROTO = 0x80;
+	static final int EMPTY_LIST = ']';
+	static final int MARK = '(';
+	static final int APPENDS = 'e';
+	static final int STOP = '.';
+	static final int BINUNICODE = 'X';
+	static final int BININT = 'J';
+	static final int LONG1 = 0x8a;
+	static final int BINFLOAT = 'G';
+	static final int TUPLE2 = 0x86;
+
+	private final HostedGraphiteReporter reporter;
+	private final int maxFrameEntries;
+	private int frameStart = -1;
+	private int frameEntries;
+	private int frames;
+
+	/**
+	 * @param reporter
+	 *            supplies the cached name prefixes
+	 * @param initialCapacity
+	 * @param maxFrameEntries
+	 *            the most tuples pickled into one frame
+	 */
+	PickleEncoder(HostedGraphiteReporter reporter, int initialCapacity, int maxFrameEntries) {
+		super(initialCapacity);
+		this.reporter = reporter;
+		this.maxFrameEntries = maxFrameEntries;
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, long value, long timeStamp) {
+		writePath(name, postfix);
+		writeInteger(timeStamp);
+		writeInteger(value);
+		endEntry();
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, double value, long timeStamp) {
+		writePath(name, postfix);
+		writeInteger(timeStamp);
+		writeFloat(value);
+		endEntry();
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, String value, long timeStamp) {
+		if (value == null) {
+			return;
+		}
+		try {
+			write(name, postfix, Long.parseLong(value), timeStamp);
+		} catch (NumberFormatException notLong) {
+			try {
+				write(name, postfix, Double.parseDouble(value), timeStamp);
+			} catch (NumberFormatException notNumber) {
+				// Carbon only stores numbers, the line protocol would have the receiver drop it too
+			}
+		}
+	}
+
+	private void writePath(MetricName name, MetricPostfix postfix) {
+		if (frameStart < 0) {
+			beginFrame();
+		}
+		byte[] prefix = reporter.prefixFor(name);
+		byte[] postfixBytes = postfix.getBytes();
+		writeByte(BINUNICODE);
+		writeIntLittleEndian(prefix.length + postfixBytes.length);
+		writeBytes(prefix);
+		writeBytes(postfixBytes);
+	}
+
+	private void endEntry() {
+		writeByte(TUPLE2);
+		writeByte(TUPLE2);
+		lines++;
+		if (++frameEntries >= maxFrameEntries) {
+			finish();
+		}
+	}
+
+	private void beginFrame() {
+		frameStart = count;
+		ensureCapacity(4);
+		count += 4;
+		writeByte(PROTO);
+		writeByte(2);
+		writeByte(EMPTY_LIST);
+		writeByte(MARK);
+	}
+
+	/**
+	 * Closes the open frame, if any, and writes its length.
+	 */
+	@Override
+	void finish() {
+		if (frameStart < 0) {
+			return;
+		}
+		writeByte(APPENDS);
+		writeByte(STOP);
+		int length = count - frameStart - 4;
+		byte[] buffer = buffer();
+		buffer[frameStart] = (byte) (length >>> 24);
+		buffer[frameStart + 1] = (byte) (length >>> 16);
+		buffer[frameStart + 2] = (byte) (length >>> 8);
+		buffer[frameStart + 3] = (byte) length;
+		frameStart = -1;
+		frameEntries = 0;
+		frames++;
+	}
+
+	private void writeInteger(long value) {
+		if (value == (int) value) {
+			writeByte(BININT);
+			writeIntLittleEndian((int) value);
+			return;
+		}
+		writeByte(LONG1);
+		writeByte(8);
+		byte[] buffer = ensureCapacity(8);
+		for (int i = 0; i < 8; i++) {
+			buffer[count++] = (byte) (value >>> (i * 8));
+		}
+	}
+
+	private void writeFloat(double value) {
+		writeByte(BINFLOAT);
+		long bits = Double.doubleToLongBits(value);
+		byte[] buffer = ensureCapacity(8);
+		for (int i = 7; i >= 0; i--) {
+			buffer[count++] = (byte) (bits >>> (i * 8));
+		}
+	}
+
+	private void writeIntLittleEndian(int value) {
+		byte[] buffer = ensureCapacity(4);
+		buffer[count++] = (byte) value;
+		buffer[count++] = (byte) (value >>> 8);
+		buffer[count++] = (byte) (value >>> 16);
+		buffer[count++] = (byte) (value >>> 24);
+	}
+
+	@Override
+	void reset() {
+		super.reset();
+		frameStart = -1;
+		frameEntries = 0;
+		frames = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "Pickled " + frames + " frames of " + count + " bytes";
+	}
+
+}
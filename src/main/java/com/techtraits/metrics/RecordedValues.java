@@ -0,0 +1,112 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Records the values written to it so they can be replayed into another sink later, in the order they were written. Lets a slice of a
+ * report be collected on one thread and passed through a sink that is not thread safe on another.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class RecordedValues implements MetricSink {
+
+	private static final byte LONG = 0;
+	private static final byte DOUBLE = 1;
+	private static final byte STRING = 2;
+
+	private MetricName[] names;
+	private MetricPostfix[] postfixes;
+	private byte[] kinds;
+	private long[] values;
+	private long[] timeStamps;
+	private String[] strings;
+	private int size;
+
+	/**
+	 * @param initialCapacity
+	 *            the number of values expected
+	 */
+	RecordedValues(int initialCapacity) {
+		int capacity = Math.max(initialCapacity, 16);
+		names = new MetricName[capacity];
+		postfixes = new MetricPostfix[capacity];
+		kinds = new byte[capacity];
+		values = new long[capacity];
+		timeStamps = new long[capacity];
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, long value, long timeStamp) {
+		add(name, postfix, LONG, value, null, timeStamp);
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, double value, long timeStamp) {
+		add(name, postfix, DOUBLE, Double.doubleToRawLongBits(value), null, timeStamp);
+	}
+
+	@Override
+	public void write(MetricName name, MetricPostfix postfix, String value, long timeStamp) {
+		add(name, postfix, STRING, 0, value, timeStamp);
+	}
+
+	private void add(MetricName name, MetricPostfix postfix, byte kind, long value, String string, long timeStamp) {
+		if (size == names.length) {
+			int capacity = size << 1;
+			names = Arrays.copyOf(names, capacity);
+			postfixes = Arrays.copyOf(postfixes, capacity);
+			kinds = Arrays.copyOf(kinds, capacity);
+			values = Arrays.copyOf(values, capacity);
+			timeStamps = Arrays.copyOf(timeStamps, capacity);
+			if (strings != null) {
+				strings = Arrays.copyOf(strings, capacity);
+			}
+		}
+		if (kind == STRING) {
+			if (strings == null) {
+				strings = new String[names.length];
+			}
+			strings[size] = string;
+		}
+		names[size] = name;
+		postfixes[size] = postfix;
+		kinds[size] = kind;
+		values[size] = value;
+		timeStamps[size] = timeStamp;
+		size++;
+	}
+
+	/**
+	 * Writes every recorded value to target.
+	 *
+	 * @param target
+	 */
+	void replay(MetricSink target) throws IOException {
+		for (int i = 0; i < size; i++) {
+			switch (kinds[i]) {
+			case LONG:
+				target.write(names[i], postfixes[i], values[i], timeStamps[i]);
+				break;
+			case DOUBLE:
+				target.write(names[i], postfixes[i], Double.longBitsToDouble(values[i]), timeStamps[i]);
+				break;
+			default:
+				target.write(names[i], postfixes[i], strings[i], timeStamps[i]);
+				break;
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	long getTimeStamp(int index) {
+		return timeStamps[index];
+	}
+
+}
@@ -0,0 +1,276 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Overlaps collecting, encoding and sending a report: values are encoded into chunks of about a fixed size and each full chunk is handed
+ * to a sender thread while collection carries on. At most a fixed number of chunks wait to be sent, collection blocks until the sender
+ * catches up, so a report holds a bounded number of chunks in memory however large the registry. Chunks are sent in order on the one
+ * sender thread.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class ReportPipeline {
+
+	private final HostedGraphiteReporter reporter;
+	private final int chunkBytes;
+	private final int maxPendingChunks;
+	private final Semaphore pending;
+	private final ExecutorService sender = Executors.newSingleThreadExecutor(new DaemonThreadFactory("hosted-graphite-sender"));
+	private int openStreams;
+	private boolean shutdown;
+
+	/**
+	 * @param reporter
+	 *            sends each chunk
+	 * @param chunkBytes
+	 *            a chunk is sent once it holds at least this many bytes
+	 * @param maxPendingChunks
+	 *            the most chunks encoded but not yet sent
+	 */
+	ReportPipeline(HostedGraphiteReporter reporter, int chunkBytes, int maxPendingChunks) {
+		if (chunkBytes < 1 || maxPendingChunks < 1) {
+			throw new IllegalArgumentException("Chunk size and pending chunks must be positive");
+		}
+		this.reporter = reporter;
+		this.chunkBytes = chunkBytes;
+		this.maxPendingChunks = maxPendingChunks;
+		this.pending = new Semaphore(maxPendingChunks);
+	}
+
+	int getMaxPendingChunks() {
+		return maxPendingChunks;
+	}
+
+	/**
+	 * @return the chunks encoded but not yet sent, across every open report
+	 */
+	int getPendingChunks() {
+		return maxPendingChunks - pending.availablePermits();
+	}
+
+	/**
+	 * @param encoders
+	 *            supplies the encoder of each chunk
+	 * @param timeStamp
+	 *            the time stamp of the report, used when spooling a chunk
+	 * @return a sink streaming one report, not thread safe, or null once the pipeline is shut down
+	 */
+	synchronized Stream open(EncoderPool encoders, long timeStamp) {
+		if (shutdown) {
+			return null;
+		}
+		openStreams++;
+		return new Stream(encoders, timeStamp);
+	}
+
+	/**
+	 * Stops the sender thread once the streams already open are released, no new stream can be opened.
+	 */
+	synchronized void shutdown() {
+		shutdown = true;
+		if (openStreams == 0) {
+			sender.shutdown();
+		}
+	}
+
+	private synchronized void released() {
+		if (--openStreams == 0 && shutdown) {
+			sender.shutdown();
+		}
+	}
+
+	/** One report streamed through the pipeline. */
+	final class Stream implements MetricSink {
+
+		private final EncoderPool encoders;
+		private final long timeStamp;
+		private final Queue<Future<Void>> sends = new LinkedList<Future<Void>>();
+		private PayloadEncoder encoder;
+		private long bytes;
+		private long lines;
+		private int chunks;
+		private volatile boolean delivered;
+		private boolean released;
+
+		private Stream(EncoderPool encoders, long timeStamp) {
+			this.encoders = encoders;
+			this.timeStamp = timeStamp;
+			this.encoder = encoders.acquire();
+		}
+
+		@Override
+		public void write(MetricName name, MetricPostfix postfix, long value, long timeStamp) throws IOException {
+			encoder.write(name, postfix, value, timeStamp);
+			flushIfFull();
+		}
+
+		@Override
+		public void write(MetricName name, MetricPostfix postfix, double value, long timeStamp) throws IOException {
+			encoder.write(name, postfix, value, timeStamp);
+			flushIfFull();
+		}
+
+		@Override
+		public void write(MetricName name, MetricPostfix postfix, String value, long timeStamp) throws IOException {
+			encoder.write(name, postfix, value, timeStamp);
+			flushIfFull();
+		}
+
+		private void flushIfFull() throws IOException {
+			if (encoder.size() >= chunkBytes) {
+				flush();
+			}
+		}
+
+		/**
+		 * Hands the current chunk to the sender, waiting while too many chunks are pending.
+		 */
+		private void flush() throws IOException {
+			encoder.finish();
+			if (encoder.size() == 0) {
+				return;
+			}
+			checkSent();
+			try {
+				pending.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting to send a chunk");
+			}
+			final PayloadEncoder full = encoder;
+			bytes += full.size();
+			lines += full.lines();
+			chunks++;
+			try {
+				encoder = encoders.acquire();
+				sends.add(sender.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws IOException {
+						try {
+							if (reporter.post(full, timeStamp)) {
+								delivered = true;
+							}
+							return null;
+						} finally {
+							encoders.release(full);
+							pending.release();
+						}
+					}
+				}));
+			} catch (RuntimeException e) {
+				pending.release();
+				throw e;
+			}
+		}
+
+		/**
+		 * Rethrows the failure of any chunk already sent, so a report stops collecting once a chunk is lost.
+		 */
+		private void checkSent() throws IOException {
+			while (!sends.isEmpty() && sends.peek().isDone()) {
+				await(sends.remove());
+			}
+		}
+
+		/**
+		 * Hands the last, possibly partial, chunk to the sender.
+		 */
+		void finish() throws IOException {
+			flush();
+		}
+
+		/**
+		 * @return the bytes encoded into the chunks handed to the sender
+		 */
+		long size() {
+			return bytes;
+		}
+
+		/**
+		 * @return the values encoded into the chunks handed to the sender
+		 */
+		long lines() {
+			return lines;
+		}
+
+		/**
+		 * Sends the last chunk and waits for every chunk to be sent.
+		 *
+		 * @param sendEmpty
+		 *            post an empty payload if nothing was encoded
+		 * @throws IOException
+		 *             the first failure to send a chunk
+		 */
+		void close(boolean sendEmpty) throws IOException {
+			flush();
+			if (chunks == 0 && sendEmpty && reporter.post(encoder, timeStamp)) {
+				delivered = true;
+			}
+			while (!sends.isEmpty()) {
+				await(sends.remove());
+			}
+		}
+
+		/**
+		 * Returns the encoder once the chunks handed to the sender are done, always called when the report is over. Failures are not
+		 * rethrown, {@link #close(boolean)} reports the first one.
+		 */
+		void release() {
+			if (released) {
+				return;
+			}
+			released = true;
+			encoders.release(encoder);
+			while (!sends.isEmpty()) {
+				try {
+					await(sends.remove());
+				} catch (IOException e) {
+					// The report already failed
+				} catch (RuntimeException e) {
+					// The report already failed
+				}
+			}
+			released();
+		}
+
+		/**
+		 * @return true if any chunk was delivered or spooled, final once {@link #release()} returns
+		 */
+		boolean isDelivered() {
+			return delivered;
+		}
+
+		private void await(Future<Void> send) throws IOException {
+			try {
+				send.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw (Error) cause;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for a chunk to be sent");
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.techtraits.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * The metrics a {@link HostedGraphiteReporter} keeps about itself, all named under {@link HostedGraphiteReporter#SELF_METRICS_DOMAIN}.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class ReporterMetrics {
+
+	private final MetricsRegistry registry;
+	private final boolean reported;
+	private final ConcurrentMap<MetricName, Metric> metrics = new ConcurrentSkipListMap<MetricName, Metric>();
+	/**
+	 * Walking the registry and encoding the report. Each line is encoded as it is collected, so there is no separate encode time to
+	 * measure.
+	 */
+	final Timer collect;
+	final Histogram bytes;
+	final Histogram lines;
+	/** Each HTTP request, or each send for transports other than URLFetch. */
+	final Timer post;
+	final Counter retries;
+	final Counter spooled;
+	final Counter dropped;
+	/** Gauges that missed their deadline, see {@link GaugeEvaluator}. */
+	final Counter lateGauges;
+
+	/**
+	 * @param registry
+	 *            the registry the metrics are created in
+	 * @param reported
+	 *            include the metrics in every report
+	 * @param reporter
+	 *            whose spool, pipeline and asynchronous queue depths are measured
+	 */
+	ReporterMetrics(MetricsRegistry registry, boolean reported, final HostedGraphiteReporter reporter) {
+		this.registry = registry;
+		this.reported = reported;
+		collect = timer(name("report", "collect"));
+		bytes = histogram(name("report", "bytes"));
+		lines = histogram(name("report", "lines"));
+		post = timer(name("send", "post"));
+		retries = counter(name("send", "retries"));
+		spooled = counter(name("send", "spooled"));
+		dropped = counter(name("send", "dropped"));
+		lateGauges = counter(name("gauges", "late"));
+		MetricName depth = name("spool", "depth");
+		add(depth, registry.newGauge(depth, new Gauge<Integer>() {
+
+			@Override
+			public Integer getValue() {
+				return reporter.getSpoolDepth();
+			}
+		}));
+		MetricName pipelineDepth = name("pipeline", "depth");
+		add(pipelineDepth, registry.newGauge(pipelineDepth, new Gauge<Integer>() {
+
+			@Override
+			public Integer getValue() {
+				return reporter.getPipelineDepth();
+			}
+		}));
+		MetricName asyncDepth = name("async", "depth");
+		add(asyncDepth, registry.newGauge(asyncDepth, new Gauge<Integer>() {
+
+			@Override
+			public Integer getValue() {
+				return reporter.getAsyncDepth();
+			}
+		}));
+	}
+
+	/**
+	 * Counts a failed send.
+	 *
+	 * @param responseCode
+	 *            the HTTP response code or {@link ChunkResult#NO_RESPONSE}
+	 */
+	void failure(int responseCode) {
+		counter(name("failures", responseCode == ChunkResult.NO_RESPONSE ? "no-response" : String.valueOf(responseCode))).inc();
+	}
+
+	/**
+	 * @return the metrics to add to reports, empty unless they are reported
+	 */
+	Map<MetricName, Metric> getReportedMetrics() {
+		return reported ? Collections.<MetricName, Metric> unmodifiableMap(metrics) : Collections.<MetricName, Metric> emptyMap();
+	}
+
+	private static MetricName name(String type, String name) {
+		return new MetricName(HostedGraphiteReporter.SELF_METRICS_DOMAIN, type, name);
+	}
+
+	private Timer timer(MetricName name) {
+		return add(name, registry.newTimer(name, TimeUnit.MILLISECONDS, TimeUnit.SECONDS));
+	}
+
+	private Histogram histogram(MetricName name) {
+		return add(name, registry.newHistogram(name, false));
+	}
+
+	private Counter counter(MetricName name) {
+		Metric existing = metrics.get(name);
+		return existing != null ? (Counter) existing : add(name, registry.newCounter(name));
+	}
+
+	private <T extends Metric> T add(MetricName name, T metric) {
+		metrics.put(name, metric);
+		return metric;
+	}
+
+}
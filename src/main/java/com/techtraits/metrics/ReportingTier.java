@@ -0,0 +1,52 @@
+package com.techtraits.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.yammer.metrics.core.Metric;
+
+/**
+ * Reports the metrics whose sanitized <code>domain.type[.scope].name</code> path matches a glob pattern (<code>*</code> for any run of
+ * characters, <code>?</code> for one) and whose type matches at an interval of their own, see
+ * {@link ScheduledHostedGraphiteReporter#setTiers(java.util.List)}.
+ *
+ * @author Usman Ismail
+ *
+ */
+public final class ReportingTier {
+
+	private final long periodMillis;
+	private final Pattern name;
+	private final Class<? extends Metric> type;
+
+	/**
+	 * @param period
+	 *            a whole number of seconds
+	 * @param unit
+	 * @param namePattern
+	 *            the glob the path must match, or null for any
+	 * @param type
+	 *            the type of metric, e.g. Timer.class, or null for any
+	 */
+	public ReportingTier(long period, TimeUnit unit, String namePattern, Class<? extends Metric> type) {
+		this(unit.toMillis(period), namePattern == null ? null : RollupRule.compile(namePattern), type);
+		if (periodMillis < 1000 || periodMillis % 1000 != 0) {
+			throw new IllegalArgumentException("Reporting period must be a whole number of seconds");
+		}
+	}
+
+	ReportingTier(long periodMillis, Pattern name, Class<? extends Metric> type) {
+		this.periodMillis = periodMillis;
+		this.name = name;
+		this.type = type;
+	}
+
+	boolean matches(String path, Metric metric) {
+		return (type == null || type.isInstance(metric)) && (name == null || name.matcher(path).matches());
+	}
+
+	long getPeriodMillis() {
+		return periodMillis;
+	}
+
+}
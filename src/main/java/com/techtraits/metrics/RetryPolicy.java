@@ -0,0 +1,69 @@
+package com.techtraits.metrics;
+
+import java.util.Random;
+
+/**
+ * How often and how quickly failed posts are retried. The wait before each retry doubles from the initial backoff up to the maximum, and a
+ * random half of it is jittered away so that many reporters recovering from the same outage do not retry in lock step.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+public final class RetryPolicy {
+
+	/**
+	 * A single attempt, the default.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+	private static final Random random = new Random();
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+
+	/**
+	 * @param maxAttempts
+	 *            the total number of attempts including the first
+	 * @param initialBackoffMillis
+	 *            the wait before the first retry
+	 * @param maxBackoffMillis
+	 *            the longest wait between retries
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+		if (maxAttempts < 1 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+			throw new IllegalArgumentException("Invalid retry policy");
+		}
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param failedAttempts
+	 *            the number of attempts made so far
+	 * @return how long to wait before the next attempt
+	 */
+	long backoffMillis(int failedAttempts) {
+		long backoff = initialBackoffMillis;
+		for (int i = 1; i < failedAttempts && backoff < maxBackoffMillis; i++) {
+			backoff <<= 1;
+		}
+		backoff = Math.min(backoff, maxBackoffMillis);
+		long half = backoff / 2;
+		return half == 0 ? backoff : backoff - half + (long) (random.nextDouble() * half);
+	}
+
+	/**
+	 * @param responseCode
+	 *            the response code or {@link ChunkResult#NO_RESPONSE} when the request itself failed
+	 * @return true if the failure may be temporary, other client errors will fail again
+	 */
+	boolean isRetryable(int responseCode) {
+		return responseCode == ChunkResult.NO_RESPONSE || responseCode == 429 || responseCode >= 500;
+	}
+
+}
@@ -0,0 +1,251 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * Aggregates the metrics of one report that match a {@link RollupRule} and writes the rolled up metrics once the rest of the report has
+ * been collected. A metric whose type differs from the metrics already rolled up under its name is reported on its own. Histogram and
+ * timer snapshots are merged into a {@link WeightedReservoir}, and only when a statistic of the rolled up snapshot is reported. Not
+ * thread safe, one per report.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class RollupAggregator {
+
+	private static final int UNSUPPORTED = -1;
+	private static final int COUNTER = 0;
+	private static final int METER = 1;
+	private static final int HISTOGRAM = 2;
+	private static final int TIMER = 3;
+	private static final int GAUGE = 4;
+
+	private final RollupRule[] rules;
+	private final Map<MetricName, Group> groups = new LinkedHashMap<MetricName, Group>();
+
+	RollupAggregator(RollupRule[] rules) {
+		this.rules = rules;
+	}
+
+	/**
+	 * @param reporter
+	 *            whose filter decides which metrics are rolled up
+	 * @param metrics
+	 * @return the metrics that were not rolled up, in their original order
+	 */
+	Map<MetricName, Metric> absorb(HostedGraphiteReporter reporter, Map<MetricName, Metric> metrics) {
+		Map<MetricName, Metric> remaining = new LinkedHashMap<MetricName, Metric>();
+		for (Map.Entry<MetricName, Metric> entry : metrics.entrySet()) {
+			if (!reporter.isReported(entry.getKey(), entry.getValue())) {
+				continue;
+			} else if (!add(reporter, entry.getKey(), entry.getValue())) {
+				remaining.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * @return true if the metric was rolled up
+	 */
+	boolean add(HostedGraphiteReporter reporter, MetricName name, Metric metric) {
+		RollupRule rule = ruleFor(name);
+		int kind = kindOf(metric);
+		if (rule == null || kind == UNSUPPORTED) {
+			return false;
+		}
+		MetricName rolledUp = rule.rollUp(name);
+		Group group = groups.get(rolledUp);
+		if (group == null) {
+			boolean sampled = (kind == HISTOGRAM || kind == TIMER) && reporter.isSnapshotSelected(rolledUp, metric);
+			group = new Group(kind, rule.getGaugeReduction(), sampled ? new WeightedReservoir() : null);
+			groups.put(rolledUp, group);
+		} else if (group.kind != kind) {
+			return false;
+		}
+		group.add(metric);
+		return true;
+	}
+
+	private static int kindOf(Metric metric) {
+		if (metric instanceof Counter) {
+			return COUNTER;
+		} else if (metric instanceof Meter) {
+			return METER;
+		} else if (metric instanceof Histogram) {
+			return HISTOGRAM;
+		} else if (metric instanceof Timer) {
+			return TIMER;
+		} else if (metric instanceof Gauge) {
+			return GAUGE;
+		}
+		return UNSUPPORTED;
+	}
+
+	private RollupRule ruleFor(MetricName name) {
+		for (RollupRule rule : rules) {
+			if (rule.matches(name)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes every rolled up metric the reporter's filter selects, in the order they were first seen, with the lines selected for its name
+	 * and type.
+	 */
+	void writeTo(HostedGraphiteReporter reporter, MetricSink sink, long timeStamp) throws IOException {
+		for (Map.Entry<MetricName, Group> entry : groups.entrySet()) {
+			Group group = entry.getValue();
+			MetricSink selected = reporter.selectedSink(sink, entry.getKey(), group.first);
+			if (selected != null) {
+				group.writeTo(reporter, selected, entry.getKey(), timeStamp);
+			}
+		}
+	}
+
+	/** The running aggregate of the metrics rolled up under one name. */
+	private static final class Group {
+
+		private final int kind;
+		private final RollupRule.GaugeReduction reduction;
+		private long count;
+		private double meanRate;
+		private double oneMinuteRate;
+		private double fiveMinuteRate;
+		private double fifteenMinuteRate;
+		private long sampled;
+		private double sampledTotal;
+		private final WeightedReservoir reservoir;
+		private double gaugeMin = Double.POSITIVE_INFINITY;
+		private double gaugeMax = Double.NEGATIVE_INFINITY;
+		private double gaugeTotal;
+		private int gauges;
+		private Metric first;
+
+		Group(int kind, RollupRule.GaugeReduction reduction, WeightedReservoir reservoir) {
+			this.kind = kind;
+			this.reduction = reduction;
+			this.reservoir = reservoir;
+		}
+
+		@SuppressWarnings("rawtypes")
+		void add(Metric metric) {
+			if (first == null) {
+				// Stands in for the type of the rolled up metric
+				first = metric;
+			}
+			switch (kind) {
+			case COUNTER:
+				count += ((Counter) metric).getCount();
+				break;
+			case METER:
+				addMeter((Meter) metric);
+				break;
+			case HISTOGRAM:
+				Histogram histogram = (Histogram) metric;
+				count += histogram.getCount();
+				addSamples(histogram.getCount(), histogram.getMean(), reservoir == null ? null : histogram.getSnapshot());
+				break;
+			case TIMER:
+				Timer timer = (Timer) metric;
+				addMeter(timer.getMeter());
+				addSamples(timer.getCount(), timer.getMean(), reservoir == null ? null : timer.getSnapshot());
+				break;
+			default:
+				addGauge(((Gauge) metric).getValue());
+				break;
+			}
+		}
+
+		private void addMeter(Meter meter) {
+			count += meter.getCount();
+			meanRate += meter.getMeanRate();
+			oneMinuteRate += meter.getOneMinuteRate();
+			fiveMinuteRate += meter.getFiveMinuteRate();
+			fifteenMinuteRate += meter.getFifteenMinuteRate();
+		}
+
+		private void addSamples(long sampleTotal, double mean, Snapshot snapshot) {
+			sampled += sampleTotal;
+			sampledTotal += mean * sampleTotal;
+			if (snapshot != null) {
+				reservoir.add(sampleTotal, snapshot);
+			}
+		}
+
+		private void addGauge(Object value) {
+			double numeric;
+			if (value instanceof Number) {
+				numeric = ((Number) value).doubleValue();
+			} else {
+				try {
+					numeric = Double.parseDouble(String.valueOf(value));
+				} catch (NumberFormatException e) {
+					// Only numbers can be reduced
+					return;
+				}
+			}
+			gaugeMin = Math.min(gaugeMin, numeric);
+			gaugeMax = Math.max(gaugeMax, numeric);
+			gaugeTotal += numeric;
+			gauges++;
+		}
+
+		void writeTo(HostedGraphiteReporter reporter, MetricSink sink, MetricName name, long timeStamp) throws IOException {
+			double mean = sampled == 0 ? 0 : sampledTotal / sampled;
+			switch (kind) {
+			case COUNTER:
+				sink.write(name, MetricPostfix.COUNTER, count, timeStamp);
+				break;
+			case METER:
+				reporter.writeMeter(sink, name, count, meanRate, oneMinuteRate, fiveMinuteRate, fifteenMinuteRate, timeStamp);
+				break;
+			case HISTOGRAM:
+				sink.write(name, MetricPostfix.COUNT, count, timeStamp);
+				sink.write(name, MetricPostfix.MEAN, mean, timeStamp);
+				if (reservoir != null && reporter.isSnapshotSelected(sink)) {
+					reporter.writeSnapshot(sink, name, reservoir.toSnapshot(), timeStamp);
+				}
+				break;
+			case TIMER:
+				reporter.writeMeter(sink, name, count, meanRate, oneMinuteRate, fiveMinuteRate, fifteenMinuteRate, timeStamp);
+				sink.write(name, MetricPostfix.MEAN, mean, timeStamp);
+				if (reservoir != null && reporter.isSnapshotSelected(sink)) {
+					reporter.writeSnapshot(sink, name, reservoir.toSnapshot(), timeStamp);
+				}
+				break;
+			default:
+				if (gauges > 0) {
+					sink.write(name, MetricPostfix.VALUE, reducedGauge(), timeStamp);
+				}
+				break;
+			}
+		}
+
+		private double reducedGauge() {
+			switch (reduction) {
+			case MIN:
+				return gaugeMin;
+			case MAX:
+				return gaugeMax;
+			default:
+				return gaugeTotal / gauges;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.techtraits.metrics;
+
+import java.util.regex.Pattern;
+
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Rolls up every metric whose domain, type and scope match glob patterns (<code>*</code> for any run of characters, <code>?</code> for
+ * one) into one metric per name, sent in place of the metrics it aggregates. Counters and meters are summed, histogram and timer samples
+ * are sampled into one snapshot of bounded size, weighted by each metric's count, and numeric gauges are reduced to their minimum, maximum
+ * or average.
+ *
+ * @author Usman Ismail
+ *
+ */
+public final class RollupRule {
+
+	/** How the values of the gauges rolled up together are combined. */
+	public enum GaugeReduction {
+		MIN, MAX, AVG
+	}
+
+	private final Pattern domain;
+	private final Pattern type;
+	private final Pattern scope;
+	private final String rolledUpType;
+	private final String rolledUpScope;
+	private final GaugeReduction gaugeReduction;
+
+	/**
+	 * @param domainPattern
+	 * @param typePattern
+	 * @param scopePattern
+	 *            matched against the scope, or the empty string for names without one
+	 * @param rolledUpType
+	 *            the type of the rolled up metrics, or null to keep each metric's type
+	 * @param rolledUpScope
+	 *            the scope of the rolled up metrics, or null for none
+	 * @param gaugeReduction
+	 */
+	public RollupRule(String domainPattern, String typePattern, String scopePattern, String rolledUpType, String rolledUpScope,
+			GaugeReduction gaugeReduction) {
+		if (gaugeReduction == null) {
+			throw new IllegalArgumentException("A gauge reduction is required");
+		}
+		this.domain = compile(domainPattern);
+		this.type = compile(typePattern);
+		this.scope = compile(scopePattern);
+		this.rolledUpType = rolledUpType;
+		this.rolledUpScope = rolledUpScope;
+		this.gaugeReduction = gaugeReduction;
+	}
+
+	/**
+	 * @param glob
+	 * @return a pattern matching the whole of a string against glob
+	 */
+	static Pattern compile(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int literal = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (i > literal) {
+					regex.append(Pattern.quote(glob.substring(literal, i)));
+				}
+				regex.append(c == '*' ? ".*" : ".");
+				literal = i + 1;
+			}
+		}
+		if (literal < glob.length()) {
+			regex.append(Pattern.quote(glob.substring(literal)));
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	boolean matches(MetricName name) {
+		return domain.matcher(name.getDomain()).matches() && type.matcher(name.getType()).matches()
+				&& scope.matcher(name.hasScope() ? name.getScope() : "").matches();
+	}
+
+	/**
+	 * @param name
+	 *            a name the rule matches
+	 * @return the name of the metric name is rolled up into
+	 */
+	MetricName rollUp(MetricName name) {
+		return new MetricName(name.getDomain(), rolledUpType == null ? name.getType() : rolledUpType, name.getName(), rolledUpScope);
+	}
+
+	GaugeReduction getGaugeReduction() {
+		return gaugeReduction;
+	}
+
+}
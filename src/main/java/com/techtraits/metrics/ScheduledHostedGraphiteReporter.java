@@ -0,0 +1,246 @@
+package com.techtraits.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * Reports every metric in a {@link MetricsRegistry} through a {@link HostedGraphiteReporter} at a fixed interval. Reports run on interval
+ * boundaries (multiples of the period since the epoch) and are timestamped with that boundary, so the schedule does not drift when a report
+ * is slow. Reports never overlap, boundaries missed because a report overran are skipped rather than run late.
+ * <p>
+ * Metrics can be reported at intervals of their own by {@link ReportingTier}s. All tiers run on the same aligned boundaries and every
+ * tier due at a boundary is sent in one report.
+ * </p>
+ * 
+ * @author Usman Ismail
+ * 
+ */
+public class ScheduledHostedGraphiteReporter {
+
+	private static final Logger log = Logger.getLogger(ScheduledHostedGraphiteReporter.class.getName());
+	private final HostedGraphiteReporter reporter;
+	private final MetricsRegistry registry;
+	private static final int MAX_TRACKED_NAMES = 100000;
+	private final long periodMillis;
+	private final ReportingTier defaultTier;
+	private final ScheduledExecutorService executor;
+	private final MetricNameCache<ReportingTier> tierByName = new MetricNameCache<ReportingTier>(MAX_TRACKED_NAMES);
+	private ReportingTier[] tiers = new ReportingTier[0];
+	private long tickMillis;
+	private final Object reportLock = new Object();
+	private ScheduledFuture<?> nextReport;
+	private long lastBoundary;
+	private long lastReported;
+	private boolean started;
+	private boolean stopped;
+
+	/**
+	 * @param reporter
+	 * @param registry
+	 *            the registry whose metrics are reported
+	 * @param period
+	 *            the reporting interval, a whole number of seconds as Graphite timestamps are in seconds
+	 * @param unit
+	 */
+	public ScheduledHostedGraphiteReporter(HostedGraphiteReporter reporter, MetricsRegistry registry, long period, TimeUnit unit) {
+		this(reporter, registry, period, unit, Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("hosted-graphite-reporter")));
+	}
+
+	/**
+	 * @param executor
+	 *            runs the reports, a single thread so that they never overlap
+	 */
+	ScheduledHostedGraphiteReporter(HostedGraphiteReporter reporter, MetricsRegistry registry, long period, TimeUnit unit,
+			ScheduledExecutorService executor) {
+		this.periodMillis = unit.toMillis(period);
+		if (periodMillis < 1000 || periodMillis % 1000 != 0) {
+			throw new IllegalArgumentException("Reporting period must be a whole number of seconds");
+		}
+		this.reporter = reporter;
+		this.registry = registry;
+		this.defaultTier = new ReportingTier(periodMillis, null, null);
+		this.tickMillis = periodMillis;
+		this.executor = executor;
+	}
+
+	/**
+	 * Reports the metrics matching a tier at the tier's interval instead of the reporter's, the first tier a metric matches applies. The
+	 * reporter wakes up on every boundary of any tier.
+	 * 
+	 * @param tiers
+	 */
+	public synchronized void setTiers(List<ReportingTier> tiers) {
+		if (started) {
+			throw new IllegalStateException("Tiers must be set before starting");
+		}
+		this.tiers = tiers.toArray(new ReportingTier[tiers.size()]);
+		long tick = periodMillis;
+		for (ReportingTier tier : tiers) {
+			tick = gcd(tick, tier.getPeriodMillis());
+		}
+		this.tickMillis = tick;
+		tierByName.clear();
+	}
+
+	/**
+	 * Schedules the first report for the next interval boundary.
+	 */
+	public synchronized void start() {
+		if (started) {
+			throw new IllegalStateException("Already started");
+		}
+		started = true;
+		lastBoundary = currentTimeMillis();
+		scheduleNext();
+	}
+
+	/**
+	 * Stops scheduling, waits for a running report to complete and then reports every metric once more so the final partial interval is
+	 * not lost. The final report is timestamped with the last boundary that has passed, never a future one that the next process would
+	 * report again. When that boundary was already reported the final report rewrites it with the latest values.
+	 * 
+	 * @param timeout
+	 *            how long to wait for a running report
+	 * @param unit
+	 * @return false if a running report did not complete in time, the final report is skipped in that case
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		synchronized (this) {
+			if (stopped) {
+				return true;
+			}
+			stopped = true;
+			if (nextReport != null) {
+				nextReport.cancel(false);
+			}
+		}
+		executor.shutdown();
+		if (!executor.awaitTermination(timeout, unit)) {
+			log.warning("Timed out waiting for a running report, final interval not reported");
+			return false;
+		}
+		report(floorBoundary(currentTimeMillis(), tickMillis), true);
+		return true;
+	}
+
+	private synchronized void scheduleNext() {
+		if (stopped) {
+			return;
+		}
+		long now = currentTimeMillis();
+		// Never before the last boundary, a timer firing a little early must not report the same interval twice
+		final long boundary = nextBoundary(Math.max(now, lastBoundary), tickMillis);
+		long missed = (boundary - lastBoundary) / tickMillis - 1;
+		if (missed > 0 && nextReport != null) {
+			log.warning("Reporting overran, skipping " + missed + " interval(s)");
+		}
+		lastBoundary = boundary;
+		nextReport = executor.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				report(boundary, false);
+				scheduleNext();
+			}
+		}, boundary - now, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param boundaryMillis
+	 * @param everyTier
+	 *            report every metric, not only those whose tier is due, the final report
+	 */
+	void report(long boundaryMillis, boolean everyTier) {
+		synchronized (reportLock) {
+			if (everyTier) {
+				// The final report may rewrite the last reported point, but never an earlier one
+				boundaryMillis = Math.max(boundaryMillis, lastReported);
+			} else if (boundaryMillis <= lastReported) {
+				// A clock stepping back must not overwrite a reported point
+				boundaryMillis = lastReported + tickMillis;
+			}
+			lastReported = boundaryMillis;
+			try {
+				Map<MetricName, Metric> metrics = registry.allMetrics();
+				Map<MetricName, Metric> due = dueMetrics(metrics, boundaryMillis, everyTier);
+				// A boundary no tier is due at is only skipped when there are tiers
+				if (due == metrics || !due.isEmpty()) {
+					reporter.reportMetrics(due, boundaryMillis / 1000);
+				}
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "Unable to report metrics", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the metrics whose tier has a boundary at boundaryMillis, in registry order
+	 */
+	private Map<MetricName, Metric> dueMetrics(Map<MetricName, Metric> metrics, long boundaryMillis, boolean everyTier) {
+		ReportingTier[] current;
+		synchronized (this) {
+			current = tiers;
+		}
+		if (current.length == 0) {
+			// Without tiers every report is at the reporter's interval
+			return metrics;
+		}
+		Map<MetricName, Metric> due = new LinkedHashMap<MetricName, Metric>();
+		for (Map.Entry<MetricName, Metric> entry : metrics.entrySet()) {
+			if (everyTier || boundaryMillis % tierFor(current, entry.getKey(), entry.getValue()).getPeriodMillis() == 0) {
+				due.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return due;
+	}
+
+	private ReportingTier tierFor(ReportingTier[] current, MetricName name, Metric metric) {
+		ReportingTier tier = tierByName.get(name);
+		if (tier == null) {
+			tier = defaultTier;
+			String path = reporter.sanitizeName(name);
+			for (ReportingTier candidate : current) {
+				if (candidate.matches(path, metric)) {
+					tier = candidate;
+					break;
+				}
+			}
+			tierByName.put(name, tier);
+		}
+		return tier;
+	}
+
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the first interval boundary strictly after time
+	 */
+	static long nextBoundary(long time, long period) {
+		return floorBoundary(time, period) + period;
+	}
+
+	static long gcd(long a, long b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	/**
+	 * @return the last interval boundary at or before time
+	 */
+	static long floorBoundary(long time, long period) {
+		return time - (time % period);
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.techtraits.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * A single statistic derived from the {@link Snapshot} of a histogram or timer, e.g. the median, a percentile, the minimum, maximum or standard
+ * deviation. The reporter takes one snapshot per metric and derives every configured statistic from it.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+public final class SnapshotStatistic {
+
+	private enum Kind {
+		QUANTILE, MIN, MAX, STDDEV
+	}
+
+	public static final SnapshotStatistic MEDIAN = new SnapshotStatistic("median", Kind.QUANTILE, 0.5);
+	public static final SnapshotStatistic P75 = new SnapshotStatistic("75percentile", Kind.QUANTILE, 0.75);
+	public static final SnapshotStatistic P95 = new SnapshotStatistic("95percentile", Kind.QUANTILE, 0.95);
+	public static final SnapshotStatistic P98 = new SnapshotStatistic("98percentile", Kind.QUANTILE, 0.98);
+	public static final SnapshotStatistic P99 = new SnapshotStatistic("99percentile", Kind.QUANTILE, 0.99);
+	public static final SnapshotStatistic P999 = new SnapshotStatistic("999percentile", Kind.QUANTILE, 0.999);
+	public static final SnapshotStatistic MIN = new SnapshotStatistic("min", Kind.MIN, 0d);
+	public static final SnapshotStatistic MAX = new SnapshotStatistic("max", Kind.MAX, 1d);
+	public static final SnapshotStatistic STDDEV = new SnapshotStatistic("stddev", Kind.STDDEV, 0d);
+
+	private final MetricPostfix postFix;
+	private final Kind kind;
+	private final double quantile;
+
+	private SnapshotStatistic(String postFix, Kind kind, double quantile) {
+		this.postFix = MetricPostfix.of(postFix);
+		this.kind = kind;
+		this.quantile = quantile;
+	}
+
+	/**
+	 * @param quantile
+	 *            a value between 0 and 1 inclusive
+	 * @param postFix
+	 *            the postfix the statistic is reported under
+	 */
+	public static SnapshotStatistic quantile(double quantile, String postFix) {
+		if (quantile < 0d || quantile > 1d || Double.isNaN(quantile)) {
+			throw new IllegalArgumentException(quantile + " is not in [0..1]");
+		}
+		return new SnapshotStatistic(postFix, Kind.QUANTILE, quantile);
+	}
+
+	/**
+	 * Parses a statistic such as <code>median</code>, <code>min</code>, <code>max</code>, <code>stddev</code> or a percentile such as
+	 * <code>p5</code>, <code>p75</code> or <code>p999</code>. One or two digits are a whole percentile, further digits fractions of a
+	 * percent, so <code>p999</code> is the 99.9th. Percentiles are reported as e.g. <code>999percentile</code>.
+	 * 
+	 * @param spec
+	 */
+	public static SnapshotStatistic parse(String spec) {
+		String trimmed = spec.trim();
+		if ("median".equals(trimmed)) {
+			return MEDIAN;
+		} else if ("min".equals(trimmed)) {
+			return MIN;
+		} else if ("max".equals(trimmed)) {
+			return MAX;
+		} else if ("stddev".equals(trimmed)) {
+			return STDDEV;
+		} else if (trimmed.length() > 1 && trimmed.charAt(0) == 'p') {
+			String digits = trimmed.substring(1);
+			for (int i = 0; i < digits.length(); i++) {
+				if (!Character.isDigit(digits.charAt(i))) {
+					throw new IllegalArgumentException("Unknown statistic: " + spec);
+				}
+			}
+			double quantile;
+			if (digits.length() <= 2) {
+				quantile = Integer.parseInt(digits) / 100d;
+			} else if ("100".equals(digits)) {
+				quantile = 1d;
+			} else {
+				// Digits past the second are fractions of a percent, p999 is the 99.9th percentile
+				quantile = Double.parseDouble("0." + digits);
+			}
+			return quantile(quantile, digits + "percentile");
+		}
+		throw new IllegalArgumentException("Unknown statistic: " + spec);
+	}
+
+	/**
+	 * @param specs
+	 *            a comma separated list of statistics, e.g. <code>p50,p75,p99,p999,min,max,stddev</code>
+	 */
+	public static List<SnapshotStatistic> parseList(String specs) {
+		List<SnapshotStatistic> statistics = new ArrayList<SnapshotStatistic>();
+		for (String spec : specs.split(",")) {
+			if (spec.trim().length() > 0) {
+				statistics.add(parse(spec));
+			}
+		}
+		return statistics;
+	}
+
+	public String getPostFix() {
+		return postFix.getName();
+	}
+
+	MetricPostfix getMetricPostfix() {
+		return postFix;
+	}
+
+	/**
+	 * @param snapshot
+	 * @return the value of this statistic for the given snapshot
+	 */
+	public double valueOf(Snapshot snapshot) {
+		switch (kind) {
+		case QUANTILE:
+		case MIN:
+		case MAX:
+			return snapshot.getValue(quantile);
+		default:
+			return standardDeviation(snapshot);
+		}
+	}
+
+	private static double standardDeviation(Snapshot snapshot) {
+		long count = 0;
+		double mean = 0;
+		double sumOfSquares = 0;
+		// Welford's single pass algorithm, avoids a second walk over the values
+		for (double value : snapshot.getValues()) {
+			count++;
+			double delta = value - mean;
+			mean += delta / count;
+			sumOfSquares += delta * (value - mean);
+		}
+		if (count <= 1) {
+			return 0d;
+		}
+		return Math.sqrt(sumOfSquares / (count - 1));
+	}
+
+	@Override
+	public String toString() {
+		return postFix.getName();
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.techtraits.metrics;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays spooled payloads once a second, oldest reports first, sending at most a fixed number of bytes per second so that recovering from
+ * an outage does not crowd out live reporting. A window of records is only removed from the spool once every record in it was accepted,
+ * records of a window that partly failed are posted again on the next run which Graphite tolerates as it keeps the last value for a
+ * timestamp.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class SpoolDrainer implements Runnable {
+
+	private static final Logger log = Logger.getLogger(SpoolDrainer.class.getName());
+	private static final int WINDOW_RECORDS = 16;
+	private static final Comparator<MetricsSpool.Record> BY_TIMESTAMP = new Comparator<MetricsSpool.Record>() {
+
+		@Override
+		public int compare(MetricsSpool.Record a, MetricsSpool.Record b) {
+			return a.getTimeStamp() < b.getTimeStamp() ? -1 : (a.getTimeStamp() == b.getTimeStamp() ? 0 : 1);
+		}
+	};
+
+	private final HostedGraphiteReporter reporter;
+	private final MetricsSpool spool;
+	private final long bytesPerSecond;
+
+	/**
+	 * @param reporter
+	 *            sends the replayed payloads
+	 * @param spool
+	 * @param bytesPerSecond
+	 *            the most payload bytes replayed per run, at least one record is always replayed
+	 */
+	SpoolDrainer(HostedGraphiteReporter reporter, MetricsSpool spool, long bytesPerSecond) {
+		this.reporter = reporter;
+		this.spool = spool;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	@Override
+	public void run() {
+		try {
+			drain();
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Unable to replay spooled metrics", e);
+		}
+	}
+
+	/**
+	 * @return the number of records replayed
+	 */
+	int drain() {
+		long budget = bytesPerSecond;
+		int replayed = 0;
+		while (budget > 0) {
+			List<MetricsSpool.Record> window = spool.peek(WINDOW_RECORDS, budget);
+			if (window.isEmpty()) {
+				break;
+			}
+			long last = window.get(window.size() - 1).getSequence();
+			Collections.sort(window, BY_TIMESTAMP);
+			for (MetricsSpool.Record record : window) {
+				if (!reporter.replay(spool, record)) {
+					return replayed;
+				}
+				budget -= record.getPayload().length;
+			}
+			spool.removeThrough(last);
+			replayed += window.size();
+		}
+		return replayed;
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends line protocol to a carbon (or Hosted Graphite) TCP listener over one persistent non-blocking {@link SocketChannel}. Payloads are
+ * written with gathering writes of views of the encoded payload, interleaved with the line prefix when one is set. A connection the receiver
+ * closed is noticed before sending and replaced, a send that fails part way reconnects and sends the whole payload once more.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+public class TcpTransport implements MetricsTransport {
+
+	private static final Logger log = Logger.getLogger(TcpTransport.class.getName());
+	private static final int MAX_VIEW_BYTES = 64 * 1024;
+	private final InetSocketAddress address;
+	private final ByteBuffer prefix;
+	private final int connectTimeoutMillis;
+	private final int writeTimeoutMillis;
+	private final ByteBuffer probe = ByteBuffer.allocate(256);
+	private ByteBuffer[] views = new ByteBuffer[64];
+	private SocketChannel channel;
+	private Selector selector;
+
+	/**
+	 * @param address
+	 */
+	public TcpTransport(InetSocketAddress address) {
+		this(address, "", 10000, 30000);
+	}
+
+	/**
+	 * @param address
+	 * @param linePrefix
+	 *            prepended to every line, e.g. <code>"your-api-key."</code> for Hosted Graphite, empty for none
+	 * @param connectTimeoutMillis
+	 * @param writeTimeoutMillis
+	 *            the longest a write may wait for the receiver to accept more data
+	 */
+	public TcpTransport(InetSocketAddress address, String linePrefix, int connectTimeoutMillis, int writeTimeoutMillis) {
+		this.address = address;
+		this.prefix = ByteBuffer.wrap(linePrefix.getBytes(MetricPostfix.UTF8)).asReadOnlyBuffer();
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.writeTimeoutMillis = writeTimeoutMillis;
+	}
+
+	/**
+	 * @return true if lines are sent with a prefix, which rules out binary payloads
+	 */
+	boolean hasLinePrefix() {
+		return prefix.capacity() > 0;
+	}
+
+	@Override
+	public synchronized void send(byte[] payload, int offset, int length) throws IOException {
+		int count = views(payload, offset, length);
+		try {
+			write(connection(), count);
+		} catch (IOException e) {
+			log.log(Level.FINE, "Reconnecting to " + address, e);
+			disconnect();
+			views(payload, offset, length);
+			write(connection(), count);
+		}
+	}
+
+	/**
+	 * Fills the views with the payload, split into lines when there is a prefix.
+	 * 
+	 * @return the number of views
+	 */
+	private int views(byte[] payload, int offset, int length) {
+		int count = 0;
+		int end = offset + length;
+		if (prefix.capacity() == 0) {
+			for (int start = offset; start < end; start += MAX_VIEW_BYTES) {
+				ensureViews(count + 1);
+				views[count++] = ByteBuffer.wrap(payload, start, Math.min(MAX_VIEW_BYTES, end - start));
+			}
+			return count;
+		}
+		int lineStart = offset;
+		for (int i = offset; i < end; i++) {
+			if (payload[i] == '\n' || i == end - 1) {
+				ensureViews(count + 2);
+				views[count++] = prefix.duplicate();
+				views[count++] = ByteBuffer.wrap(payload, lineStart, i + 1 - lineStart);
+				lineStart = i + 1;
+			}
+		}
+		return count;
+	}
+
+	private void ensureViews(int count) {
+		if (count > views.length) {
+			ByteBuffer[] grown = new ByteBuffer[Math.max(count, views.length * 2)];
+			System.arraycopy(views, 0, grown, 0, views.length);
+			views = grown;
+		}
+	}
+
+	private void write(SocketChannel connection, int count) throws IOException {
+		int first = 0;
+		while (first < count) {
+			if (connection.write(views, first, count - first) == 0) {
+				await(SelectionKey.OP_WRITE, writeTimeoutMillis);
+			}
+			while (first < count && !views[first].hasRemaining()) {
+				views[first++] = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the open connection, connecting first if there is none or the receiver closed it
+	 */
+	private SocketChannel connection() throws IOException {
+		if (channel != null) {
+			probe.clear();
+			// Carbon never writes back, end of stream means the receiver closed the connection
+			if (channel.read(probe) < 0) {
+				disconnect();
+			}
+		}
+		if (channel == null) {
+			SocketChannel opened = SocketChannel.open();
+			try {
+				opened.configureBlocking(false);
+				selector = Selector.open();
+				channel = opened;
+				if (!opened.connect(address)) {
+					await(SelectionKey.OP_CONNECT, connectTimeoutMillis);
+					opened.finishConnect();
+				}
+			} catch (IOException e) {
+				disconnect();
+				throw e;
+			}
+		}
+		return channel;
+	}
+
+	private void await(int operation, int timeoutMillis) throws IOException {
+		SelectionKey key = channel.register(selector, operation);
+		try {
+			if (selector.select(timeoutMillis) == 0) {
+				throw new SocketTimeoutException("Timed out waiting for " + address);
+			}
+		} finally {
+			selector.selectedKeys().clear();
+			key.interestOps(0);
+		}
+	}
+
+	private void disconnect() {
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.FINE, "Unable to close connection to " + address, e);
+		} finally {
+			selector = null;
+			channel = null;
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		disconnect();
+	}
+
+}
@@ -0,0 +1,111 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+
+/**
+ * Posts line protocol to the Hosted Graphite HTTP interface with the App Engine {@link URLFetchService}, optionally gzip compressed and in
+ * concurrent chunks.
+ * 
+ * @author Usman Ismail
+ * 
+ */
+final class URLFetchTransport implements MetricsTransport {
+
+	static final HTTPHeader GZIP_ENCODING_HEADER = new HTTPHeader("Content-Encoding", "gzip");
+	private static final double requestTimeout = 60d; // 60 seconds
+	private final URLFetchService fetcher;
+	private final URL url;
+	private final HTTPHeader authHeader;
+	private volatile ChunkedPoster chunkedPoster;
+	private volatile int gzipThreshold = -1;
+	private volatile ReporterMetrics metrics;
+
+	URLFetchTransport(URLFetchService fetcher, URL url, HTTPHeader authHeader) {
+		this.fetcher = fetcher;
+		this.url = url;
+		this.authHeader = authHeader;
+	}
+
+	void setChunkedPosting(int maxChunkBytes, int maxInFlight) {
+		this.chunkedPoster = new ChunkedPoster(fetcher, url, authHeader, requestTimeout, maxChunkBytes, maxInFlight);
+	}
+
+	void setGzipThreshold(int thresholdBytes) {
+		this.gzipThreshold = thresholdBytes;
+	}
+
+	/**
+	 * @param metrics
+	 *            records the latency of each request, or null
+	 */
+	void setMetrics(ReporterMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void send(byte[] payload, int offset, int length) throws IOException {
+		ChunkedPoster poster = chunkedPoster;
+		int threshold = gzipThreshold;
+		if (poster != null) {
+			postChunked(poster, payload, offset, length, threshold);
+		} else if (threshold >= 0 && length >= threshold) {
+			post(Gzip.compress(payload, offset, length), true);
+		} else {
+			// URLFetch needs an exactly sized payload, this is the only copy of the encoded bytes
+			post(Arrays.copyOfRange(payload, offset, offset + length), false);
+		}
+	}
+
+	private void post(byte[] payload, boolean gzipped) throws IOException {
+		HTTPRequest request = new HTTPRequest(url, HTTPMethod.POST);
+		request.getFetchOptions().setDeadline(requestTimeout);
+		request.setHeader(authHeader);
+		if (gzipped) {
+			request.setHeader(GZIP_ENCODING_HEADER);
+		}
+		request.setPayload(payload);
+		long start = System.nanoTime();
+		HTTPResponse response = fetcher.fetch(request);
+		ReporterMetrics self = metrics;
+		if (self != null) {
+			self.post.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+		if (response.getResponseCode() != 202) {
+			throw new HttpStatusException(response.getResponseCode(), new String(response.getContent()));
+		}
+	}
+
+	private void postChunked(ChunkedPoster poster, byte[] payload, int offset, int length, int threshold) throws IOException {
+		List<ChunkResult> failed = new ArrayList<ChunkResult>();
+		ReporterMetrics self = metrics;
+		List<ChunkResult> results = poster.post(payload, offset, length, threshold);
+		for (ChunkResult result : results) {
+			if (self != null) {
+				self.post.update(result.getLatencyNanos(), TimeUnit.NANOSECONDS);
+			}
+			if (!result.isSuccess()) {
+				failed.add(result);
+			}
+		}
+		if (!failed.isEmpty()) {
+			throw new PartialSendException(failed, results.size());
+		}
+	}
+
+	@Override
+	public void close() {
+		// URLFetch holds no connections of its own
+	}
+
+}
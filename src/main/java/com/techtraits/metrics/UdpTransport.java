@@ -0,0 +1,124 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Sends line protocol to a carbon (or Hosted Graphite) UDP listener with a non-blocking {@link DatagramChannel}. As many whole lines as fit
+ * are packed into each datagram, a line that does not fit on its own is sent alone. Each datagram is written with a single gathering write of
+ * views of the encoded payload, interleaved with the line prefix when one is set, so lines are never copied.
+ * <p>
+ * UDP gives no delivery guarantee, a lost datagram is not reported as a failure.
+ * </p>
+ * 
+ * @author Usman Ismail
+ * 
+ */
+public class UdpTransport implements MetricsTransport {
+
+	/**
+	 * A 1500 byte Ethernet MTU less the IPv4 and UDP headers.
+	 */
+	public static final int DEFAULT_MAX_DATAGRAM_BYTES = 1472;
+	private static final int WRITE_TIMEOUT_MILLIS = 10000;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final ByteBuffer prefix;
+	private final int maxDatagramBytes;
+	private ByteBuffer[] views = new ByteBuffer[64];
+
+	/**
+	 * @param address
+	 */
+	public UdpTransport(InetSocketAddress address) throws IOException {
+		this(address, "", DEFAULT_MAX_DATAGRAM_BYTES);
+	}
+
+	/**
+	 * @param address
+	 * @param linePrefix
+	 *            prepended to every line, e.g. <code>"your-api-key."</code> for Hosted Graphite, empty for none
+	 * @param maxDatagramBytes
+	 *            the largest datagram sent, usually the path MTU less the IP and UDP headers
+	 */
+	public UdpTransport(InetSocketAddress address, String linePrefix, int maxDatagramBytes) throws IOException {
+		this.prefix = ByteBuffer.wrap(linePrefix.getBytes(MetricPostfix.UTF8)).asReadOnlyBuffer();
+		this.maxDatagramBytes = maxDatagramBytes;
+		this.channel = DatagramChannel.open();
+		this.selector = Selector.open();
+		channel.connect(address);
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_WRITE);
+	}
+
+	@Override
+	public synchronized void send(byte[] payload, int offset, int length) throws IOException {
+		int prefixLength = prefix.capacity();
+		int end = offset + length;
+		int datagramStart = offset;
+		int datagramBytes = 0;
+		int position = offset;
+		while (position < end) {
+			int lineEnd = position;
+			while (lineEnd < end && payload[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			lineEnd = Math.min(lineEnd + 1, end);
+			int lineBytes = prefixLength + lineEnd - position;
+			if (datagramBytes > 0 && datagramBytes + lineBytes > maxDatagramBytes) {
+				write(payload, datagramStart, position);
+				datagramStart = position;
+				datagramBytes = 0;
+			}
+			datagramBytes += lineBytes;
+			position = lineEnd;
+		}
+		if (datagramBytes > 0) {
+			write(payload, datagramStart, end);
+		}
+	}
+
+	/**
+	 * Writes the lines from start to end as one datagram.
+	 */
+	private void write(byte[] payload, int start, int end) throws IOException {
+		int count = 0;
+		if (prefix.capacity() == 0) {
+			views[count++] = ByteBuffer.wrap(payload, start, end - start);
+		} else {
+			int lineStart = start;
+			for (int i = start; i < end; i++) {
+				if (payload[i] == '\n' || i == end - 1) {
+					if (count + 2 > views.length) {
+						ByteBuffer[] grown = new ByteBuffer[views.length * 2];
+						System.arraycopy(views, 0, grown, 0, count);
+						views = grown;
+					}
+					views[count++] = prefix.duplicate();
+					views[count++] = ByteBuffer.wrap(payload, lineStart, i + 1 - lineStart);
+					lineStart = i + 1;
+				}
+			}
+		}
+		// A connected datagram channel sends everything written at once as a single datagram
+		while (channel.write(views, 0, count) == 0) {
+			if (selector.select(WRITE_TIMEOUT_MILLIS) == 0) {
+				throw new SocketTimeoutException("Timed out waiting to send a datagram");
+			}
+			selector.selectedKeys().clear();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		selector.close();
+		channel.close();
+	}
+
+}
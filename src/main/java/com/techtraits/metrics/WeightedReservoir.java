@@ -0,0 +1,118 @@
+package com.techtraits.metrics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * A fixed size sample of the values of many snapshots, each value weighted by how many updates it stands for, so a snapshot of a busy
+ * metric counts for more than one of an idle metric with as many samples. Uses weighted reservoir sampling with exponential jumps
+ * (Efraimidis and Spirakis), which draws random numbers only when a value enters the reservoir. Keys are kept as logarithms so small
+ * weights do not underflow. Not thread safe.
+ *
+ * @author Usman Ismail
+ *
+ */
+final class WeightedReservoir {
+
+	/** The size of Yammer's default uniform sample. */
+	static final int DEFAULT_SIZE = 1028;
+
+	private final Random random;
+	private final double[] values;
+	// A min heap of log keys, the smallest is the next to be replaced
+	private final double[] keys;
+	private int size;
+	private double skip;
+
+	WeightedReservoir() {
+		this(DEFAULT_SIZE, new Random());
+	}
+
+	WeightedReservoir(int capacity, Random random) {
+		this.random = random;
+		this.values = new double[capacity];
+		this.keys = new double[capacity];
+	}
+
+	/**
+	 * @param updates
+	 *            how many updates the snapshot's values were sampled from
+	 * @param snapshot
+	 */
+	void add(long updates, Snapshot snapshot) {
+		double[] sampled = snapshot.getValues();
+		if (updates <= 0 || sampled.length == 0) {
+			return;
+		}
+		double weight = (double) updates / sampled.length;
+		for (double value : sampled) {
+			if (size < values.length) {
+				insert(value, Math.log(nextUniform()) / weight);
+				if (size == values.length) {
+					skip = nextSkip();
+				}
+			} else if ((skip -= weight) <= 0) {
+				// The value replaces the smallest key, its own key is drawn above that key
+				double threshold = Math.exp(keys[0] * weight);
+				double key = Math.log(threshold + nextUniform() * (1 - threshold)) / weight;
+				values[0] = value;
+				keys[0] = Math.max(key, keys[0]);
+				siftDown(0);
+				skip = nextSkip();
+			}
+		}
+	}
+
+	/**
+	 * @return the sampled values, at most the reservoir's capacity
+	 */
+	Snapshot toSnapshot() {
+		return new Snapshot(Arrays.copyOf(values, size));
+	}
+
+	private double nextSkip() {
+		return Math.log(nextUniform()) / keys[0];
+	}
+
+	private double nextUniform() {
+		// Excludes 0, whose logarithm is infinite
+		return 1 - random.nextDouble();
+	}
+
+	private void insert(double value, double key) {
+		int child = size++;
+		while (child > 0) {
+			int parent = (child - 1) >>> 1;
+			if (keys[parent] <= key) {
+				break;
+			}
+			keys[child] = keys[parent];
+			values[child] = values[parent];
+			child = parent;
+		}
+		keys[child] = key;
+		values[child] = value;
+	}
+
+	private void siftDown(int parent) {
+		double key = keys[parent];
+		double value = values[parent];
+		int child;
+		while ((child = (parent << 1) + 1) < size) {
+			if (child + 1 < size && keys[child + 1] < keys[child]) {
+				child++;
+			}
+			if (key <= keys[child]) {
+				break;
+			}
+			keys[parent] = keys[child];
+			values[parent] = values[child];
+			parent = child;
+		}
+		keys[parent] = key;
+		values[parent] = value;
+	}
+
+}
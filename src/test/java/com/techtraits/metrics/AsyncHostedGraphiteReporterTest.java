@@ -0,0 +1,135 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.techtraits.metrics.AsyncHostedGraphiteReporter.OverflowPolicy;
+import com.techtraits.metrics.AsyncHostedGraphiteReporter.Priority;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class AsyncHostedGraphiteReporterTest {
+
+	@Test(groups = "automated")
+	public void testDropNewestShedsLowerPriorities() throws Exception {
+		BlockingTransport transport = new BlockingTransport();
+		AsyncHostedGraphiteReporter async = new AsyncHostedGraphiteReporter(new HostedGraphiteReporter(transport), 3,
+				OverflowPolicy.DROP_NEWEST);
+		MetricsRegistry registry = new MetricsRegistry();
+		transport.block(async, counter(registry, "first", 1));
+
+		Assert.assertTrue(async.submit(name("a"), counter(registry, "a", 1), 100, Priority.LOW));
+		Assert.assertTrue(async.submit(name("b"), counter(registry, "b", 2), 100, Priority.NORMAL));
+		Assert.assertTrue(async.submit(name("c"), counter(registry, "c", 3), 100, Priority.NORMAL));
+		// Full: a critical metric sheds the low priority one, another low priority one is rejected
+		Assert.assertTrue(async.submit(name("d"), counter(registry, "d", 4), 100, Priority.CRITICAL));
+		Assert.assertFalse(async.submit(name("e"), counter(registry, "e", 5), 100, Priority.LOW));
+		Assert.assertFalse(async.submit(name("f"), counter(registry, "f", 6), 100, Priority.NORMAL));
+		Assert.assertEquals(async.getQueued(), 3);
+		Assert.assertEquals(async.getDropped(), 3);
+
+		transport.release();
+		Assert.assertTrue(async.shutdown(10, TimeUnit.SECONDS));
+		Assert.assertEquals(transport.toString(), "null.test.queued.first.count 1 100\n"
+				// Most important first
+				+ "null.test.queued.d.count 4 100\n" + "null.test.queued.b.count 2 100\n" + "null.test.queued.c.count 3 100\n");
+	}
+
+	@Test(groups = "automated")
+	public void testDropOldest() throws Exception {
+		BlockingTransport transport = new BlockingTransport();
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+		MetricsRegistry selfRegistry = new MetricsRegistry();
+		reporter.setSelfMetrics(selfRegistry, false);
+		Gauge<?> depth = (Gauge<?>) selfRegistry.allMetrics().get(
+				new MetricName(HostedGraphiteReporter.SELF_METRICS_DOMAIN, "async", "depth"));
+		AsyncHostedGraphiteReporter async = new AsyncHostedGraphiteReporter(reporter, 2, OverflowPolicy.DROP_OLDEST);
+		MetricsRegistry registry = new MetricsRegistry();
+		transport.block(async, counter(registry, "first", 1));
+
+		Assert.assertTrue(async.submit(name("a"), counter(registry, "a", 1), 100, Priority.NORMAL));
+		Assert.assertTrue(async.submit(name("b"), counter(registry, "b", 2), 100, Priority.NORMAL));
+		Assert.assertTrue(async.submit(name("c"), counter(registry, "c", 3), 100, Priority.NORMAL));
+		// Never sheds a more important metric
+		Assert.assertFalse(async.submit(name("d"), counter(registry, "d", 4), 100, Priority.LOW));
+		Assert.assertEquals(async.getDropped(), 2);
+		Assert.assertEquals(depth.getValue(), 2);
+
+		transport.release();
+		Assert.assertTrue(async.shutdown(10, TimeUnit.SECONDS));
+		Assert.assertEquals(depth.getValue(), 0);
+		Assert.assertEquals(transport.toString(), "null.test.queued.first.count 1 100\n" + "null.test.queued.b.count 2 100\n"
+				+ "null.test.queued.c.count 3 100\n");
+	}
+
+	@Test(groups = "automated")
+	public void testCoalesce() throws Exception {
+		BlockingTransport transport = new BlockingTransport();
+		AsyncHostedGraphiteReporter async = new AsyncHostedGraphiteReporter(new HostedGraphiteReporter(transport), 2,
+				OverflowPolicy.COALESCE);
+		MetricsRegistry registry = new MetricsRegistry();
+		transport.block(async, counter(registry, "first", 1));
+
+		Counter a = counter(registry, "a", 1);
+		Assert.assertTrue(async.submit(name("a"), a, 100, Priority.NORMAL));
+		Assert.assertTrue(async.submit(name("b"), counter(registry, "b", 2), 100, Priority.NORMAL));
+		for (int i = 0; i < 10; i++) {
+			a.inc();
+			Assert.assertTrue(async.submit(name("a"), a, 110 + i, Priority.NORMAL));
+		}
+		Assert.assertEquals(async.getQueued(), 2);
+		Assert.assertEquals(async.getDropped(), 0);
+
+		transport.release();
+		Assert.assertTrue(async.shutdown(10, TimeUnit.SECONDS));
+		Assert.assertEquals(transport.toString(), "null.test.queued.first.count 1 100\n" + "null.test.queued.a.count 11 119\n"
+				+ "null.test.queued.b.count 2 100\n");
+	}
+
+	private static MetricName name(String name) {
+		return new MetricName("test", "queued", name);
+	}
+
+	private static Counter counter(MetricsRegistry registry, String name, long count) {
+		Counter counter = registry.newCounter(name(name));
+		counter.inc(count);
+		return counter;
+	}
+
+	/**
+	 * Holds up the first send until released, so the queue fills behind it.
+	 */
+	private static final class BlockingTransport extends CapturingTransport {
+
+		private final CountDownLatch sending = new CountDownLatch(1);
+		private final CountDownLatch released = new CountDownLatch(1);
+
+		void block(AsyncHostedGraphiteReporter async, Counter first) throws InterruptedException {
+			async.submit(name("first"), first, 100, Priority.NORMAL);
+			Assert.assertTrue(sending.await(10, TimeUnit.SECONDS));
+		}
+
+		void release() {
+			released.countDown();
+		}
+
+		@Override
+		public void send(byte[] bytes, int offset, int length) throws IOException {
+			sending.countDown();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			super.send(bytes, offset, length);
+		}
+
+	}
+
+}
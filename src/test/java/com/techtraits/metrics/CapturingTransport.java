@@ -0,0 +1,40 @@
+package com.techtraits.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A {@link MetricsTransport} that concatenates everything sent to it.
+ */
+class CapturingTransport implements MetricsTransport {
+
+	private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+	@Override
+	public synchronized void send(byte[] bytes, int offset, int length) throws IOException {
+		payload.write(bytes, offset, length);
+	}
+
+	synchronized byte[] toByteArray() {
+		return payload.toByteArray();
+	}
+
+	synchronized void reset() {
+		payload.reset();
+	}
+
+	@Override
+	public synchronized String toString() {
+		try {
+			return payload.toString("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
@@ -0,0 +1,260 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class ChunkedPostingTest {
+
+	@Test(groups = "automated")
+	public void testUndeliveredChunksAreDropped() throws Exception {
+		final AtomicInteger responseCode = new AtomicInteger(400);
+		final List<String> posted = new ArrayList<String>();
+		URLFetchService fetcher = mock(URLFetchService.class);
+		when(fetcher.fetchAsync(any(HTTPRequest.class))).thenAnswer(new Answer<Future<HTTPResponse>>() {
+
+			@Override
+			public Future<HTTPResponse> answer(InvocationOnMock invocation) throws Throwable {
+				posted.add(new String(((HTTPRequest) invocation.getArguments()[0]).getPayload()));
+				return new SlowResponse(response(responseCode.get()), 0, new AtomicLong());
+			}
+		});
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+		MetricsRegistry registry = new MetricsRegistry();
+		for (int i = 0; i < 20; i++) {
+			MetricName name = new MetricName("test", "counter", "testUndeliveredChunksAreDropped" + i);
+			registry.newCounter(name).inc(i);
+			metrics.put(name, registry.allMetrics().get(name));
+		}
+		MetricsRegistry selfRegistry = new MetricsRegistry();
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter("RosesAreRed", "http://www.hostedgraphite.com", fetcher);
+		reporter.setChunkedPosting(200, 2);
+		reporter.setSelfMetrics(selfRegistry, false);
+		reporter.setDeltaReporting(10, false);
+
+		reporter.reportMetrics(metrics, 1000000l);
+		int chunks = posted.size();
+		Assert.assertTrue(chunks > 1);
+		Counter dropped = (Counter) selfRegistry.allMetrics().get(
+				new MetricName(HostedGraphiteReporter.SELF_METRICS_DOMAIN, "send", "dropped"));
+		Assert.assertEquals(dropped.getCount(), chunks);
+
+		// Nothing was delivered, so the unchanged values are sent again
+		responseCode.set(202);
+		posted.clear();
+		reporter.reportMetrics(metrics, 1000060l);
+		Assert.assertEquals(posted.size(), chunks);
+		posted.clear();
+		reporter.reportMetrics(metrics, 1000120l);
+		Assert.assertTrue(posted.isEmpty());
+		Assert.assertEquals(dropped.getCount(), chunks);
+	}
+
+	@Test(groups = "automated")
+	public void testLatencyTakenWhenEachChunkCompletes() throws Exception {
+		final HTTPResponse accepted = response(202);
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicLong clock = new AtomicLong();
+		URLFetchService fetcher = mock(URLFetchService.class);
+		when(fetcher.fetchAsync(any(HTTPRequest.class))).thenAnswer(new Answer<Future<HTTPResponse>>() {
+
+			@Override
+			public Future<HTTPResponse> answer(InvocationOnMock invocation) throws Throwable {
+				// The first chunk is slow, the rest complete at once
+				return new SlowResponse(accepted, requests.getAndIncrement() == 0 ? 20 : 0, clock);
+			}
+		});
+		ChunkedPoster poster = new ChunkedPoster(fetcher, new URL("http://www.hostedgraphite.com"), new HTTPHeader("Authorization", "x"), 60,
+				4, 4) {
+
+			@Override
+			long nanoTime() {
+				return clock.get();
+			}
+		};
+		byte[] payload = "a 1\nb 2\nc 3\n".getBytes("UTF-8");
+		List<ChunkResult> results = poster.post(payload, 0, payload.length, -1);
+
+		Assert.assertEquals(results.size(), 3);
+		for (int i = 0; i < results.size(); i++) {
+			Assert.assertEquals(results.get(i).getOffset(), i * 4);
+			Assert.assertTrue(results.get(i).isSuccess());
+		}
+		// The later chunks were not timed as waiting behind the first
+		Assert.assertTrue(results.get(0).getLatencyNanos() > 0);
+		Assert.assertEquals(results.get(1).getLatencyNanos(), 0);
+		Assert.assertEquals(results.get(2).getLatencyNanos(), 0);
+	}
+
+	@Test(groups = "automated")
+	public void testChunkedPosting() throws Exception {
+		URLFetchService fetcher = mock(URLFetchService.class);
+		final HTTPResponse resp = mock(HTTPResponse.class);
+		when(resp.getResponseCode()).thenReturn(202);
+		when(resp.getContent()).thenReturn("WOOHOO".getBytes());
+
+		final List<byte[]> chunks = new ArrayList<byte[]>();
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		when(fetcher.fetchAsync(any(HTTPRequest.class))).thenAnswer(new Answer<Future<HTTPResponse>>() {
+
+			@Override
+			public Future<HTTPResponse> answer(InvocationOnMock invocation) throws Throwable {
+				chunks.add(((HTTPRequest) invocation.getArguments()[0]).getPayload());
+				maxInFlight.set(Math.max(maxInFlight.get(), inFlight.incrementAndGet()));
+				return new InFlightResponse(resp, inFlight);
+			}
+		});
+
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter("RosesAreRed", "http://www.hostedgraphite.com", fetcher);
+		reporter.setChunkedPosting(200, 3);
+
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+		for (int i = 0; i < 50; i++) {
+			Counter c = Metrics.newCounter(ChunkedPostingTest.class, "testChunkedPosting" + i);
+			c.inc(i);
+			metrics.put(new MetricName("test", "counter", "testChunkedPosting" + i), c);
+		}
+
+		reporter.reportMetrics(metrics, 1000000l);
+
+		StringBuilder joined = new StringBuilder();
+		for (byte[] chunk : chunks) {
+			Assert.assertTrue(chunk.length <= 200);
+			Assert.assertEquals(chunk[chunk.length - 1], (byte) '\n');
+			joined.append(new String(chunk));
+		}
+		Assert.assertTrue(chunks.size() > 1);
+		Assert.assertTrue(maxInFlight.get() <= 3);
+		for (int i = 0; i < 50; i++) {
+			Assert.assertTrue(joined.toString().contains(".test.counter.testChunkedPosting" + i + ".count " + i + " 1000000\n"));
+		}
+
+	}
+
+	private static HTTPResponse response(int code) {
+		HTTPResponse response = mock(HTTPResponse.class);
+		when(response.getResponseCode()).thenReturn(code);
+		when(response.getContent()).thenReturn(new byte[0]);
+		return response;
+	}
+
+	/**
+	 * A response that completes once it has been waited on a number of times, each wait advancing the clock rather than sleeping.
+	 */
+	private static final class SlowResponse implements Future<HTTPResponse> {
+
+		private final HTTPResponse response;
+		private final AtomicLong clock;
+		private int waits;
+
+		SlowResponse(HTTPResponse response, int waits, AtomicLong clock) {
+			this.response = response;
+			this.waits = waits;
+			this.clock = clock;
+		}
+
+		@Override
+		public synchronized HTTPResponse get() {
+			waits = 0;
+			return response;
+		}
+
+		@Override
+		public synchronized HTTPResponse get(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+			if (waits > 0) {
+				clock.addAndGet(unit.toNanos(timeout));
+				if (--waits > 0) {
+					throw new TimeoutException();
+				}
+			}
+			return response;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public synchronized boolean isDone() {
+			return waits == 0;
+		}
+	}
+
+	/**
+	 * A response that is only counted as complete once the reporter waits for it.
+	 */
+	private static final class InFlightResponse implements Future<HTTPResponse> {
+
+		private final HTTPResponse response;
+		private final AtomicInteger inFlight;
+		private boolean done;
+
+		InFlightResponse(HTTPResponse response, AtomicInteger inFlight) {
+			this.response = response;
+			this.inFlight = inFlight;
+		}
+
+		@Override
+		public synchronized HTTPResponse get() {
+			if (!done) {
+				done = true;
+				inFlight.decrementAndGet();
+			}
+			return response;
+		}
+
+		@Override
+		public HTTPResponse get(long timeout, TimeUnit unit) {
+			return get();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public synchronized boolean isDone() {
+			return done;
+		}
+	}
+
+}
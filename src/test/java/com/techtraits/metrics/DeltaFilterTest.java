@@ -0,0 +1,108 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.ArgumentCaptor;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+public class DeltaFilterTest {
+
+	@Test(groups = "automated")
+	public void testDeltaReporting() throws Exception {
+		URLFetchService fetcher = mock(URLFetchService.class);
+		HTTPResponse resp = mock(HTTPResponse.class);
+		ArgumentCaptor<HTTPRequest> reqCapture = ArgumentCaptor.forClass(HTTPRequest.class);
+
+		when(fetcher.fetch(any(HTTPRequest.class))).thenReturn(resp);
+		when(resp.getResponseCode()).thenReturn(202);
+		when(resp.getContent()).thenReturn("WOOHOO".getBytes());
+
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter("RosesAreRed", "http://www.hostedgraphite.com", fetcher);
+		reporter.setDeltaReporting(3, true);
+
+		Counter c = Metrics.newCounter(DeltaFilterTest.class, "testDeltaCounter");
+		c.inc(5);
+		Gauge<Long> g = Metrics.newGauge(DeltaFilterTest.class, "testDeltaGauge", new Gauge<Long>() {
+
+			@Override
+			public Long getValue() {
+				return 42l;
+			}
+		});
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+		metrics.put(new MetricName("test", "counter", "testDeltaCounter"), c);
+		metrics.put(new MetricName("test", "gauge", "testDeltaGauge"), g);
+
+		// 1: everything is new
+		reporter.reportMetrics(metrics, 1000000l);
+		// 2: counter moved by 2, gauge unchanged
+		c.inc(2);
+		reporter.reportMetrics(metrics, 1000060l);
+		// 3: nothing changed, nothing sent
+		reporter.reportMetrics(metrics, 1000120l);
+		// 4: heartbeat for the gauge, last sent three reports ago
+		reporter.reportMetrics(metrics, 1000180l);
+
+		verify(fetcher, times(3)).fetch(reqCapture.capture());
+		List<HTTPRequest> requests = reqCapture.getAllValues();
+		Assert.assertEquals(new String(requests.get(0).getPayload()), "null.test.counter.testDeltaCounter.count 5 1000000\n"
+				+ "null.test.gauge.testDeltaGauge.value 42 1000000\n");
+		Assert.assertEquals(new String(requests.get(1).getPayload()), "null.test.counter.testDeltaCounter.count 2 1000060\n");
+		Assert.assertEquals(new String(requests.get(2).getPayload()), "null.test.gauge.testDeltaGauge.value 42 1000180\n");
+
+	}
+
+	@Test(groups = "automated")
+	public void testDeltaReportingAfterDroppedReport() throws Exception {
+		final AtomicInteger rejecting = new AtomicInteger();
+		CapturingTransport transport = new CapturingTransport() {
+
+			@Override
+			public synchronized void send(byte[] bytes, int offset, int length) throws IOException {
+				if (rejecting.get() > 0) {
+					throw new HttpStatusException(400, "Bad request");
+				}
+				super.send(bytes, offset, length);
+			}
+		};
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+		reporter.setDeltaReporting(10, true);
+		Counter c = Metrics.newCounter(DeltaFilterTest.class, "testDeltaAfterDropped");
+		c.inc(5);
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+		metrics.put(new MetricName("test", "counter", "testDeltaAfterDropped"), c);
+
+		reporter.reportMetrics(metrics, 1000000l);
+		// Dropped with a 400, its increment must not be lost
+		c.inc(3);
+		rejecting.set(1);
+		reporter.reportMetrics(metrics, 1000060l);
+		c.inc(2);
+		rejecting.set(0);
+		reporter.reportMetrics(metrics, 1000120l);
+
+		Assert.assertEquals(transport.toString(), "null.test.counter.testDeltaAfterDropped.count 5 1000000\n"
+				+ "null.test.counter.testDeltaAfterDropped.count 5 1000120\n");
+	}
+
+}
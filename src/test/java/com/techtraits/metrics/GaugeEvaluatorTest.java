@@ -0,0 +1,161 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class GaugeEvaluatorTest {
+
+	@Test(groups = "automated")
+	public void testGaugesReconfiguredDuringReport() throws Exception {
+		final Semaphore evaluating = new Semaphore(0);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+		metrics.put(new MetricName("test", "gauge", "waiting"), new Gauge<Integer>() {
+
+			@Override
+			public Integer getValue() {
+				evaluating.release();
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException("Interrupted while evaluating", e);
+				}
+				return 7;
+			}
+		});
+		CapturingTransport transport = new CapturingTransport();
+		final HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+		reporter.setConcurrentGauges(2, 10, TimeUnit.SECONDS, true);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Void> report = executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws IOException {
+					reporter.reportMetrics(metrics, 1000000l);
+					return null;
+				}
+			});
+			Assert.assertTrue(evaluating.tryAcquire(10, TimeUnit.SECONDS));
+			// The report already evaluating keeps its evaluator until it is done
+			reporter.setConcurrentGauges(4, 10, TimeUnit.SECONDS, true);
+			proceed.countDown();
+			report.get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(transport.toString(), "null.test.gauge.waiting.value 7 1000000\n");
+
+			transport.reset();
+			reporter.reportMetrics(metrics, 1000060l);
+			Assert.assertEquals(transport.toString(), "null.test.gauge.waiting.value 7 1000060\n");
+		} finally {
+			proceed.countDown();
+			executor.shutdown();
+			reporter.close();
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testConcurrentGauges() throws Exception {
+		final Semaphore permits = new Semaphore(0);
+		final AtomicInteger calls = new AtomicInteger();
+		MetricName slow = new MetricName("test", "gauge", "slow");
+		MetricName fast = new MetricName("test", "gauge", "fast");
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+		metrics.put(slow, new Gauge<Integer>() {
+
+			@Override
+			public Integer getValue() {
+				int call = calls.incrementAndGet();
+				permits.acquireUninterruptibly();
+				return call;
+			}
+		});
+		metrics.put(fast, new Gauge<Float>() {
+
+			@Override
+			public Float getValue() {
+				return 1.1f;
+			}
+		});
+		MetricsRegistry selfRegistry = new MetricsRegistry();
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter(new CapturingTransport());
+		ReporterMetrics self = new ReporterMetrics(selfRegistry, false, reporter);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		GaugeEvaluator evaluator = new GaugeEvaluator(reporter, executor, TimeUnit.MILLISECONDS.toNanos(100), true);
+
+		// Never returned, so there is no last value
+		Map<MetricName, Metric> evaluated = evaluator.evaluate(metrics, self);
+		Assert.assertEquals(valueOf(evaluated, fast), 1.1f);
+		Assert.assertFalse(evaluated.containsKey(slow));
+		permits.release();
+		awaitIdle(executor, 2);
+
+		// Late again, the value the first evaluation returned in the background stands in
+		Assert.assertEquals(valueOf(evaluator.evaluate(metrics, self), slow), 1);
+		// Still evaluating for the last report, late a third time and now slow
+		Assert.assertEquals(valueOf(evaluator.evaluate(metrics, self), slow), 1);
+		Assert.assertEquals(calls.get(), 2);
+		permits.release();
+		awaitIdle(executor, 2);
+
+		// Slow gauges report their last value between evaluations
+		evaluated = evaluator.evaluate(metrics, self);
+		Assert.assertEquals(valueOf(evaluated, fast), 1.1f);
+		Assert.assertEquals(valueOf(evaluated, slow), 2);
+		Assert.assertEquals(calls.get(), 2);
+		// Evaluated on its cadence, meeting the deadline makes it a regular gauge again
+		permits.release(2);
+		Assert.assertEquals(valueOf(evaluator.evaluate(metrics, self), slow), 3);
+		Assert.assertEquals(valueOf(evaluator.evaluate(metrics, self), slow), 4);
+
+		Counter late = (Counter) selfRegistry.allMetrics().get(
+				new MetricName(HostedGraphiteReporter.SELF_METRICS_DOMAIN, "gauges", "late"));
+		Assert.assertEquals(late.getCount(), 3);
+		evaluator.shutdown();
+	}
+
+	private static Object valueOf(Map<MetricName, Metric> evaluated, MetricName name) {
+		return ((Gauge<?>) evaluated.get(name)).getValue();
+	}
+
+	/**
+	 * Returns once every task already submitted to a pool of the given number of threads has completed, by occupying all of its threads.
+	 */
+	private static void awaitIdle(ExecutorService executor, int threads) throws Exception {
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		List<Future<Integer>> waiting = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < threads; i++) {
+			waiting.add(executor.submit(new Callable<Integer>() {
+
+				@Override
+				public Integer call() throws Exception {
+					return barrier.await();
+				}
+			}));
+		}
+		for (Future<Integer> future : waiting) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+	}
+
+}
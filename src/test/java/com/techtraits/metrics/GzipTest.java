@@ -0,0 +1,62 @@
+package com.techtraits.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+public class GzipTest {
+
+	@Test(groups = "automated")
+	public void testGzipPayloads() throws Exception {
+		LocalGraphiteEndpoint endpoint = new LocalGraphiteEndpoint();
+		try {
+			HostedGraphiteReporter reporter = new HostedGraphiteReporter("RosesAreRed", endpoint.getUrl(), endpoint.fetcher());
+			reporter.setGzipThreshold(1024);
+
+			// Too small to be worth compressing
+			Counter c = Metrics.newCounter(GzipTest.class, "testGzipCounter");
+			c.inc();
+			reporter.reportCounterView(new MetricName("test", "counter", "testGzipCounter"), c, 1000000l);
+
+			// Large enough to be compressed while it is encoded
+			Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+			for (int i = 0; i < 5000; i++) {
+				Counter counter = Metrics.newCounter(GzipTest.class, "testGzipCounter" + i);
+				counter.inc(i);
+				metrics.put(new MetricName("test", "counter", "testGzipCounter" + i), counter);
+			}
+			reporter.reportMetrics(metrics, 1000000l);
+
+			// Compressed per chunk when posting in chunks
+			reporter.setChunkedPosting(64 * 1024, 2);
+			reporter.reportMetrics(metrics, 1000060l);
+
+			List<String> encodings = endpoint.getContentEncodings();
+			Assert.assertEquals(encodings.get(0), "");
+			Assert.assertEquals(encodings.get(1), "gzip");
+			Assert.assertTrue(encodings.size() > 3);
+			for (String encoding : encodings.subList(2, encodings.size())) {
+				Assert.assertEquals(encoding, "gzip");
+			}
+			List<String> lines = endpoint.getLines();
+			Assert.assertEquals(lines.size(), 10001);
+			Assert.assertEquals(lines.get(0), "null.test.counter.testGzipCounter.count 1 1000000");
+			for (int i = 0; i < 5000; i++) {
+				Assert.assertTrue(lines.contains("null.test.counter.testGzipCounter" + i + ".count " + i + " 1000000"));
+				Assert.assertTrue(lines.contains("null.test.counter.testGzipCounter" + i + ".count " + i + " 1000060"));
+			}
+		} finally {
+			endpoint.stop();
+		}
+
+	}
+
+}
@@ -1,13 +1,16 @@
 package com.techtraits.metrics;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mockito.ArgumentCaptor;
 import org.testng.Assert;
@@ -25,6 +28,7 @@ import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.stats.Snapshot;
 
 public class HostedGraphiteReporterTest {
 
@@ -286,4 +290,98 @@ public class HostedGraphiteReporterTest {
 
 	}
 
+	@Test(groups = "automated")
+	public void testParsePercentiles() {
+		String[] specs = { "p1", "p5", "p50", "p99", "p999", "p9999", "p100" };
+		double[] quantiles = { 0.01, 0.05, 0.5, 0.99, 0.999, 0.9999, 1.0 };
+		for (int i = 0; i < specs.length; i++) {
+			SnapshotStatistic statistic = SnapshotStatistic.parse(specs[i]);
+			Snapshot snapshot = mock(Snapshot.class);
+			statistic.valueOf(snapshot);
+			verify(snapshot).getValue(quantiles[i]);
+			Assert.assertEquals(statistic.getPostFix(), specs[i].substring(1) + "percentile");
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testSnapshotTakenOncePerMetric() throws Exception {
+		URLFetchService fetcher = mock(URLFetchService.class);
+		HTTPResponse resp = mock(HTTPResponse.class);
+		ArgumentCaptor<HTTPRequest> reqCapture = ArgumentCaptor.forClass(HTTPRequest.class);
+
+		when(fetcher.fetch(any(HTTPRequest.class))).thenReturn(resp);
+		when(resp.getResponseCode()).thenReturn(202);
+		when(resp.getContent()).thenReturn("WOOHOO".getBytes());
+
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter("RosesAreRed", "http://www.hostedgraphite.com", fetcher);
+		reporter.setSnapshotStatistics(SnapshotStatistic.parseList("p50,p75,p999,min,max,stddev"));
+
+		Snapshot snapshot = mock(Snapshot.class);
+		when(snapshot.getValue(anyDouble())).thenReturn(7.0);
+		when(snapshot.getValues()).thenReturn(new double[] { 1, 2, 3, 4, 5 });
+
+		Histogram hist = mock(Histogram.class);
+		when(hist.getSnapshot()).thenReturn(snapshot);
+		Timer timer = mock(Timer.class);
+		when(timer.getSnapshot()).thenReturn(snapshot);
+		when(timer.getMeter()).thenReturn(mock(Meter.class));
+
+		Map<MetricName, Metric> metrics = new HashMap<MetricName, Metric>();
+		metrics.put(new MetricName("test", "histogram", "testSnapshotHistogram"), hist);
+		metrics.put(new MetricName("test", "timer", "testSnapshotTimer"), timer);
+		reporter.reportMetrics(metrics, 1000000l);
+
+		verify(hist, times(1)).getSnapshot();
+		verify(timer, times(1)).getSnapshot();
+		verify(fetcher).fetch(reqCapture.capture());
+		String captured = new String(reqCapture.getValue().getPayload());
+		Assert.assertTrue(captured.contains(".test.histogram.testSnapshotHistogram.50percentile 7.0 1000000"));
+		Assert.assertTrue(captured.contains(".test.histogram.testSnapshotHistogram.75percentile 7.0 1000000"));
+		Assert.assertTrue(captured.contains(".test.histogram.testSnapshotHistogram.999percentile 7.0 1000000"));
+		Assert.assertTrue(captured.contains(".test.histogram.testSnapshotHistogram.min 7.0 1000000"));
+		Assert.assertTrue(captured.contains(".test.histogram.testSnapshotHistogram.max 7.0 1000000"));
+		Assert.assertTrue(captured.contains(".test.timer.testSnapshotTimer.stddev " + Math.sqrt(2.5) + " 1000000"));
+		Assert.assertFalse(captured.contains(".median "));
+
+	}
+
+	@Test(groups = "automated")
+	public void testNameCache() throws Exception {
+		URLFetchService fetcher = mock(URLFetchService.class);
+		HTTPResponse resp = mock(HTTPResponse.class);
+		ArgumentCaptor<HTTPRequest> reqCapture = ArgumentCaptor.forClass(HTTPRequest.class);
+
+		when(fetcher.fetch(any(HTTPRequest.class))).thenReturn(resp);
+		when(resp.getResponseCode()).thenReturn(202);
+		when(resp.getContent()).thenReturn("WOOHOO".getBytes());
+
+		final AtomicInteger sanitized = new AtomicInteger();
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter("RosesAreRed", "http://www.hostedgraphite.com", fetcher) {
+
+			@Override
+			protected String sanitizeName(MetricName name) {
+				sanitized.incrementAndGet();
+				return super.sanitizeName(name);
+			}
+		};
+		reporter.setNameCacheSize(1);
+
+		Meter meter = Metrics.newMeter(HostedGraphiteReporterTest.class, "testNameCacheMeter", "meteredevent", TimeUnit.SECONDS);
+		MetricName meterName = new MetricName("test", "meter", "test Name Cache");
+		reporter.reportMeterView(meterName, meter, 1000000l);
+		reporter.reportMeterView(meterName, meter, 1000060l);
+		Assert.assertEquals(sanitized.get(), 1);
+
+		// A second name evicts the first from a cache of size one
+		Counter c = Metrics.newCounter(HostedGraphiteReporterTest.class, "testNameCacheCounter");
+		reporter.reportCounterView(new MetricName("test", "counter", "testNameCache"), c, 1000000l);
+		reporter.reportMeterView(meterName, meter, 1000120l);
+		Assert.assertEquals(sanitized.get(), 3);
+
+		verify(fetcher, times(4)).fetch(reqCapture.capture());
+		String captured = new String(reqCapture.getValue().getPayload());
+		Assert.assertTrue(captured.startsWith("null.test.meter.test-Name-Cache.count 0 1000120\n"));
+
+	}
+
 }
@@ -0,0 +1,116 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+public class HttpTransportTest {
+
+	@Test(groups = "automated")
+	public void testInjectedReporterLogsRejections() throws Exception {
+		final LocalGraphiteEndpoint endpoint = new LocalGraphiteEndpoint("RosesAreRed");
+		final List<LogRecord> records = new ArrayList<LogRecord>();
+		Handler handler = new Handler() {
+
+			@Override
+			public synchronized void publish(LogRecord record) {
+				records.add(record);
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		Logger log = Logger.getLogger(HostedGraphiteReporter.class.getName());
+		log.addHandler(handler);
+		try {
+			Counter c = Metrics.newCounter(HttpTransportTest.class, "testInjectedReporterLogsRejections");
+			c.inc(5);
+			MetricName name = new MetricName("test", "counter", "testInjected");
+			Injector injector = Guice.createInjector(new AbstractModule() {
+
+				@Override
+				protected void configure() {
+					bindConstant().annotatedWith(Names.named("hosted.graphite.key")).to("RosesAreRed");
+					bindConstant().annotatedWith(Names.named("hosted.graphite.url")).to(endpoint.getUrl());
+				}
+			}, new HttpTransportModule());
+			HostedGraphiteReporter reporter = injector.getInstance(HostedGraphiteReporter.class);
+			Assert.assertSame(injector.getInstance(HostedGraphiteReporter.class), reporter);
+			reporter.reportCounterView(name, c, 1000000l);
+			Assert.assertEquals(endpoint.getLines(), Arrays.asList("null.test.counter.testInjected.count 5 1000000"));
+			Assert.assertTrue(records.isEmpty());
+
+			// A bad key is dropped, but not silently
+			new HostedGraphiteReporter(new HttpTransport("VioletsAreBlue", endpoint.getUrl())).reportCounterView(name, c, 1000060l);
+			Assert.assertEquals(endpoint.getFailedRequests(), 1);
+			Assert.assertEquals(records.size(), 1);
+			Assert.assertEquals(records.get(0).getLevel(), Level.SEVERE);
+			Assert.assertTrue(records.get(0).getMessage().contains("error code: 401"), records.get(0).getMessage());
+		} finally {
+			log.removeHandler(handler);
+			endpoint.stop();
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testHttpTransport() throws Exception {
+		LocalGraphiteEndpoint endpoint = new LocalGraphiteEndpoint("RosesAreRed");
+		try {
+			Counter c = Metrics.newCounter(HttpTransportTest.class, "testHttpTransport");
+			c.inc(5);
+			MetricName name = new MetricName("test", "counter", "testHttpTransport");
+			HttpTransport transport = new HttpTransport("RosesAreRed", endpoint.getUrl());
+			HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+			for (int i = 0; i < 10; i++) {
+				reporter.reportCounterView(name, c, 1000000l + i * 60);
+			}
+			transport.setGzipThreshold(0);
+			reporter.reportCounterView(name, c, 1000600l);
+
+			Assert.assertEquals(endpoint.getLines().size(), 11);
+			Assert.assertEquals(endpoint.getLines().get(0), "null.test.counter.testHttpTransport.count 5 1000000");
+			Assert.assertEquals(endpoint.getContentEncodings().get(10), "gzip");
+			// Every report reused the first connection
+			Assert.assertEquals(endpoint.getConnections(), 1);
+
+			// Rejected credentials are dropped like they are over URLFetch
+			new HostedGraphiteReporter(new HttpTransport("VioletsAreBlue", endpoint.getUrl())).reportCounterView(name, c, 1000660l);
+			Assert.assertEquals(endpoint.getFailedRequests(), 1);
+			Assert.assertEquals(endpoint.getLines().size(), 11);
+
+			endpoint.setLatency(500);
+			HostedGraphiteReporter impatient = new HostedGraphiteReporter(new HttpTransport("RosesAreRed", endpoint.getUrl(), 1000, 100));
+			impatient.setRetryPolicy(RetryPolicy.NONE);
+			try {
+				impatient.reportCounterView(name, c, 1000720l);
+				Assert.fail("Expected the read to time out");
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			endpoint.stop();
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.yammer.metrics.core.MetricName;
+
+public class LineEncoderTest {
+
+	private static final double[] DOUBLES = { 0.0, -0.0, 1.0, -1.0, 0.5, 3.0, 300000.0, 9999999.0, 10000000.0, 1e7 + 1, 0.001, 0.0009,
+			1.0 / 3, 0.1 + 0.2, 123456.789, -42.42, 1e-10, 1e22, Double.MAX_VALUE, Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY,
+			Double.NEGATIVE_INFINITY, (double) Long.MAX_VALUE };
+	private static final long[] LONGS = { 0, 1, -1, 9, 10, 99, 100, 1000000, -1000000, 1349000000000l, Long.MAX_VALUE, Long.MIN_VALUE,
+			Long.MIN_VALUE + 1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+
+	@Test(groups = "automated")
+	public void testLongsMatchStringValueOf() throws Exception {
+		LineEncoder encoder = new LineEncoder(newReporter(), 1);
+		for (long value : LONGS) {
+			encoder.reset();
+			encoder.writeLong(value);
+			Assert.assertEquals(encoder.toString(), String.valueOf(value));
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testDoublesMatchStringValueOf() throws Exception {
+		LineEncoder encoder = new LineEncoder(newReporter(), 1);
+		for (double value : DOUBLES) {
+			encoder.reset();
+			encoder.writeDouble(value);
+			Assert.assertEquals(encoder.toString(), String.valueOf(value));
+		}
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			double value = i % 2 == 0 ? random.nextGaussian() * Math.pow(10, random.nextInt(20) - 5) : Math.floor(random.nextDouble() * 1e8);
+			encoder.reset();
+			encoder.writeDouble(value);
+			Assert.assertEquals(encoder.toString(), String.valueOf(value));
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testLinesMatchPreviousFormat() throws Exception {
+		LineEncoder encoder = new LineEncoder(newReporter(), 1);
+		MetricName name = new MetricName("test", "encoder", "test Lines");
+		encoder.write(name, MetricPostfix.COUNT, 5l, 1000000l);
+		encoder.write(name, MetricPostfix.MEAN, 2.5, 1000000l);
+		encoder.write(name, MetricPostfix.of("custom"), "café", 1000000l);
+		encoder.write(name, MetricPostfix.NONE, (String) null, 1000000l);
+
+		StringBuilder expected = new StringBuilder();
+		expected.append("null.test.encoder.test-Lines.count 5 1000000\n");
+		expected.append("null.test.encoder.test-Lines.mean 2.5 1000000\n");
+		expected.append("null.test.encoder.test-Lines.custom café 1000000\n");
+		expected.append("null.test.encoder.test-Lines null 1000000\n");
+		Assert.assertEquals(encoder.toByteArray(), expected.toString().getBytes("UTF-8"));
+	}
+
+	private HostedGraphiteReporter newReporter() throws Exception {
+		return new HostedGraphiteReporter("RosesAreRed", "http://www.hostedgraphite.com", mock(URLFetchService.class));
+	}
+
+}
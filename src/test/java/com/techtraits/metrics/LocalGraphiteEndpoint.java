@@ -0,0 +1,341 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.google.api.client.util.Base64;
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in Hosted Graphite endpoint on the loopback interface. It accepts posted line protocol, gzip encoded or not, answers 202 and keeps
+ * every received line. Like Hosted Graphite it can require the API key as the Basic auth user name, answering 401 otherwise, and it
+ * counts lines that are not <code>path value timestamp</code> as rejected rather than failing the request. Latency, a rate of error
+ * responses and a bandwidth limit can be configured to test slow or failing receivers.
+ */
+public class LocalGraphiteEndpoint implements HttpHandler {
+
+	private final HttpServer server;
+	private final ExecutorService handlers = Executors.newCachedThreadPool(new DaemonThreadFactory("local-graphite"));
+	private final ExecutorService fetches = Executors.newCachedThreadPool(new DaemonThreadFactory("local-graphite-fetch"));
+	private final String apiKey;
+	private final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+	private final List<String> contentEncodings = Collections.synchronizedList(new ArrayList<String>());
+	private final Set<InetSocketAddress> connections = Collections.synchronizedSet(new HashSet<InetSocketAddress>());
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger failedRequests = new AtomicInteger();
+	private final AtomicInteger rejectedLines = new AtomicInteger();
+	private final AtomicLong receivedBytes = new AtomicLong();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private final Random random = new Random(42);
+	private volatile long latencyMillis;
+	private volatile double errorRate;
+	private volatile int errorCode = 503;
+	private volatile long maxBytesPerSecond;
+	private long bandwidthAvailableAt;
+
+	/**
+	 * An endpoint accepting any credentials.
+	 */
+	public LocalGraphiteEndpoint() throws IOException {
+		this(null);
+	}
+
+	/**
+	 * @param apiKey
+	 *            the Basic auth user name every request must carry, or null to accept any
+	 */
+	public LocalGraphiteEndpoint(String apiKey) throws IOException {
+		this.apiKey = apiKey;
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this);
+		server.setExecutor(handlers);
+		server.start();
+	}
+
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Delays every response.
+	 *
+	 * @param latencyMillis
+	 */
+	public void setLatency(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Fails a fraction of the requests with responseCode, dropping their lines. The failures are drawn from a fixed seed so a test sees the
+	 * same sequence on every run.
+	 *
+	 * @param errorRate
+	 *            between 0, the default, and 1
+	 * @param responseCode
+	 */
+	public void setErrorRate(double errorRate, int responseCode) {
+		this.errorRate = errorRate;
+		this.errorCode = responseCode;
+	}
+
+	/**
+	 * Limits the bytes received per second across all requests, requests are answered once the limit allows for their body.
+	 *
+	 * @param maxBytesPerSecond
+	 *            zero or less for no limit, the default
+	 */
+	public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+		this.maxBytesPerSecond = maxBytesPerSecond;
+	}
+
+	public List<String> getLines() {
+		return new ArrayList<String>(lines);
+	}
+
+	/**
+	 * @return the Content-Encoding of every request received, empty for none
+	 */
+	public List<String> getContentEncodings() {
+		return new ArrayList<String>(contentEncodings);
+	}
+
+	public int getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the distinct client connections requests arrived on, fewer than the requests when connections are kept alive
+	 */
+	public int getConnections() {
+		return connections.size();
+	}
+
+	/**
+	 * @return the requests answered with an error, either refused credentials or injected errors
+	 */
+	public int getFailedRequests() {
+		return failedRequests.get();
+	}
+
+	/**
+	 * @return the lines received that were not valid line protocol
+	 */
+	public int getRejectedLines() {
+		return rejectedLines.get();
+	}
+
+	/**
+	 * @return the request body bytes received, before decompression
+	 */
+	public long getReceivedBytes() {
+		return receivedBytes.get();
+	}
+
+	/**
+	 * @return the most requests handled at the same time
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+
+	public void stop() {
+		server.stop(0);
+		handlers.shutdownNow();
+		fetches.shutdownNow();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		connections.add(exchange.getRemoteAddress());
+		int concurrent = inFlight.incrementAndGet();
+		try {
+			while (true) {
+				int max = maxInFlight.get();
+				if (concurrent <= max || maxInFlight.compareAndSet(max, concurrent)) {
+					break;
+				}
+			}
+			respond(exchange);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			exchange.sendResponseHeaders(500, -1);
+		} finally {
+			inFlight.decrementAndGet();
+			exchange.close();
+		}
+	}
+
+	private void respond(HttpExchange exchange) throws IOException, InterruptedException {
+		byte[] body = readFully(exchange.getRequestBody());
+		receivedBytes.addAndGet(body.length);
+		throttle(body.length);
+		if (latencyMillis > 0) {
+			Thread.sleep(latencyMillis);
+		}
+		if (!isAuthorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+			failedRequests.incrementAndGet();
+			exchange.sendResponseHeaders(401, -1);
+			return;
+		}
+		if (errorRate > 0 && nextDouble() < errorRate) {
+			failedRequests.incrementAndGet();
+			exchange.sendResponseHeaders(errorCode, -1);
+			return;
+		}
+		String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+		contentEncodings.add(encoding == null ? "" : encoding);
+		if ("gzip".equals(encoding)) {
+			body = readFully(new GZIPInputStream(new ByteArrayInputStream(body)));
+		}
+		for (String line : new String(body, "UTF-8").split("\n")) {
+			if (line.length() == 0) {
+				continue;
+			} else if (isValidLine(line)) {
+				lines.add(line);
+			} else {
+				rejectedLines.incrementAndGet();
+			}
+		}
+		exchange.sendResponseHeaders(202, -1);
+	}
+
+	private boolean isAuthorized(String authorization) throws IOException {
+		if (apiKey == null) {
+			return true;
+		} else if (authorization == null || !authorization.startsWith("Basic ")) {
+			return false;
+		}
+		String credentials = new String(Base64.decodeBase64(authorization.substring("Basic ".length())), "ISO-8859-1");
+		int colon = credentials.indexOf(':');
+		return apiKey.equals(colon < 0 ? credentials : credentials.substring(0, colon));
+	}
+
+	/**
+	 * @return true for <code>path value timestamp</code> with a numeric value and an integer timestamp
+	 */
+	static boolean isValidLine(String line) {
+		String[] fields = line.split(" ");
+		if (fields.length != 3 || fields[0].length() == 0) {
+			return false;
+		}
+		try {
+			Double.parseDouble(fields[1]);
+			Long.parseLong(fields[2]);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private synchronized double nextDouble() {
+		return random.nextDouble();
+	}
+
+	private void throttle(int bytes) throws InterruptedException {
+		long limit = maxBytesPerSecond;
+		if (limit <= 0) {
+			return;
+		}
+		long waitNanos;
+		synchronized (this) {
+			long now = System.nanoTime();
+			bandwidthAvailableAt = Math.max(bandwidthAvailableAt, now) + bytes * TimeUnit.SECONDS.toNanos(1) / limit;
+			waitNanos = bandwidthAvailableAt - now;
+		}
+		TimeUnit.NANOSECONDS.sleep(waitNanos);
+	}
+
+	/**
+	 * @return a URLFetchService that sends requests to this endpoint over HTTP, running asynchronous fetches concurrently
+	 */
+	public URLFetchService fetcher() {
+		return new URLFetchService() {
+
+			@Override
+			public HTTPResponse fetch(URL url) throws IOException {
+				return fetch(new HTTPRequest(url));
+			}
+
+			@Override
+			public HTTPResponse fetch(HTTPRequest request) throws IOException {
+				HttpURLConnection connection = (HttpURLConnection) request.getURL().openConnection();
+				connection.setRequestMethod(request.getMethod().name());
+				for (HTTPHeader header : request.getHeaders()) {
+					connection.setRequestProperty(header.getName(), header.getValue());
+				}
+				if (request.getPayload() != null) {
+					connection.setDoOutput(true);
+					OutputStream out = connection.getOutputStream();
+					out.write(request.getPayload());
+					out.close();
+				}
+				int code = connection.getResponseCode();
+				InputStream in = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+				byte[] content = in == null ? new byte[0] : readFully(in);
+				HTTPResponse response = mock(HTTPResponse.class);
+				when(response.getResponseCode()).thenReturn(code);
+				when(response.getContent()).thenReturn(content);
+				return response;
+			}
+
+			@Override
+			public Future<HTTPResponse> fetchAsync(URL url) {
+				return fetchAsync(new HTTPRequest(url));
+			}
+
+			@Override
+			public Future<HTTPResponse> fetchAsync(final HTTPRequest request) {
+				return fetches.submit(new Callable<HTTPResponse>() {
+
+					@Override
+					public HTTPResponse call() throws Exception {
+						return fetch(request);
+					}
+				});
+			}
+		};
+	}
+
+	static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.techtraits.metrics;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+public class LocalGraphiteEndpointTest {
+
+	@Test(groups = "automated")
+	public void testEndpointAuthentication() throws Exception {
+		LocalGraphiteEndpoint endpoint = new LocalGraphiteEndpoint("RosesAreRed");
+		try {
+			Counter c = Metrics.newCounter(LocalGraphiteEndpointTest.class, "testEndpointAuthentication");
+			c.inc(3);
+			MetricName name = new MetricName("test", "counter", "testEndpointAuthentication");
+			new HostedGraphiteReporter("RosesAreRed", endpoint.getUrl(), endpoint.fetcher()).reportCounterView(name, c, 1000000l);
+			// Rejected credentials are not worth retrying, the update is dropped
+			new HostedGraphiteReporter("VioletsAreBlue", endpoint.getUrl(), endpoint.fetcher()).reportCounterView(name, c, 1000060l);
+
+			Assert.assertEquals(endpoint.getLines(), Arrays.asList("null.test.counter.testEndpointAuthentication.count 3 1000000"));
+			Assert.assertEquals(endpoint.getRequests(), 2);
+			Assert.assertEquals(endpoint.getFailedRequests(), 1);
+			Assert.assertEquals(endpoint.getRejectedLines(), 0);
+			Assert.assertFalse(LocalGraphiteEndpoint.isValidLine("path.only 1"));
+			Assert.assertFalse(LocalGraphiteEndpoint.isValidLine("path value 1000000"));
+		} finally {
+			endpoint.stop();
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testSlowFailingEndpoint() throws Exception {
+		LocalGraphiteEndpoint endpoint = new LocalGraphiteEndpoint("RosesAreRed");
+		try {
+			Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+			for (int i = 0; i < 2000; i++) {
+				Counter counter = Metrics.newCounter(LocalGraphiteEndpointTest.class, "testSlowFailingEndpoint" + i);
+				counter.inc(i);
+				metrics.put(new MetricName("test", "counter", "testSlowFailingEndpoint" + i), counter);
+			}
+			HostedGraphiteReporter reporter = new HostedGraphiteReporter("RosesAreRed", endpoint.getUrl(), endpoint.fetcher());
+			reporter.setChunkedPosting(16 * 1024, 4);
+			reporter.setRetryPolicy(new RetryPolicy(8, 1, 10));
+			endpoint.setLatency(200);
+			endpoint.setErrorRate(0.3, 503);
+
+			reporter.reportMetrics(metrics, 1000000l);
+
+			// Every chunk failing with a 503 was retried until it got through
+			Assert.assertEquals(endpoint.getLines().size(), 2000);
+			Assert.assertTrue(endpoint.getFailedRequests() > 0);
+			// Chunks in flight overlap their latency
+			Assert.assertTrue(endpoint.getMaxInFlight() > 1);
+
+			endpoint.setLatency(0);
+			endpoint.setErrorRate(0, 503);
+			// Throttled, the report still arrives whole
+			endpoint.setMaxBytesPerSecond(128 * 1024);
+			reporter.reportMetrics(metrics, 1000060l);
+			Assert.assertEquals(endpoint.getLines().size(), 4000);
+		} finally {
+			endpoint.stop();
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.stats.Snapshot;
+
+public class MetricFilterTest {
+
+	@Test(groups = "automated")
+	public void testMetricFilter() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.newCounter(new MetricName("svc", "requests", "served", "handlerA")).inc(3);
+		registry.newCounter(new MetricName("svc", "requests", "served", "debug")).inc(4);
+		registry.newCounter(new MetricName("jvm", "gc", "runs")).inc(5);
+		Histogram sizes = mock(Histogram.class);
+		when(sizes.getCount()).thenReturn(7l);
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>(registry.allMetrics());
+		metrics.put(new MetricName("svc", "payload", "sizes"), sizes);
+
+		Map<Class<? extends Metric>, List<String>> attributes = new HashMap<Class<? extends Metric>, List<String>>();
+		attributes.put(Histogram.class, Arrays.asList("count"));
+		MetricFilter filter = new MetricFilter(Arrays.asList("svc.*"), Arrays.asList("*.debug.*"), attributes);
+		CapturingTransport transport = new CapturingTransport();
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+		reporter.setMetricFilter(filter);
+		reporter.reportMetrics(metrics, 1000000l);
+		reporter.reportMetrics(metrics, 1000000l);
+
+		String expected = "null.svc.payload.sizes.count 7 1000000\n" + "null.svc.requests.handlerA.served.count 3 1000000\n";
+		Assert.assertEquals(transport.toString(), expected + expected);
+		// None of the statistics were selected so the reservoir was never copied
+		verify(sizes, never()).getSnapshot();
+
+		// A rejected metric reported on its own sends no empty request
+		MetricsTransport rejecting = mock(MetricsTransport.class);
+		reporter = new HostedGraphiteReporter(rejecting);
+		reporter.setMetricFilter(filter);
+		reporter.reportCounterView(new MetricName("jvm", "gc", "runs"), mock(Counter.class), 1000000l);
+		verify(rejecting, never()).send(any(byte[].class), anyInt(), anyInt());
+		reporter.reportCounterView(new MetricName("svc", "requests", "served"), mock(Counter.class), 1000000l);
+		verify(rejecting).send(any(byte[].class), anyInt(), anyInt());
+
+		Assert.assertTrue(filter.allows("svc.a.b"));
+		Assert.assertFalse(filter.allows("svc"));
+		Assert.assertFalse(filter.allows("svc.debug.b"));
+		MetricFilter denyOnly = new MetricFilter(Collections.<String> emptyList(), Arrays.asList("jvm.??.*", "*.tmp"), attributes);
+		Assert.assertTrue(denyOnly.allows("svc.a.b"));
+		Assert.assertTrue(denyOnly.allows("jvm.gc"));
+		Assert.assertFalse(denyOnly.allows("jvm.gc.runs"));
+		Assert.assertFalse(denyOnly.allows("a.b.tmp"));
+	}
+
+	@Test(groups = "automated")
+	public void testTimerAttributes() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		Timer timer = registry.newTimer(new MetricName("svc", "latency", "handled"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+		double[] samples = new double[100];
+		for (int i = 1; i <= 100; i++) {
+			timer.update(i, TimeUnit.MILLISECONDS);
+			samples[i - 1] = i;
+		}
+
+		Map<Class<? extends Metric>, List<String>> attributes = new HashMap<Class<? extends Metric>, List<String>>();
+		attributes.put(Timer.class, Arrays.asList("count", "99percentile"));
+		CapturingTransport transport = new CapturingTransport();
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+		reporter.setMetricFilter(new MetricFilter(Collections.<String> emptyList(), Collections.<String> emptyList(), attributes));
+		reporter.reportMetrics(registry.allMetrics(), 1000000l);
+
+		Assert.assertEquals(transport.toString(), "null.svc.latency.handled.count 100 1000000\n"
+				+ "null.svc.latency.handled.99percentile " + new Snapshot(samples).getValue(0.99) + " 1000000\n");
+
+		// Rolled up timers are restricted to the same lines
+		registry.newTimer(new MetricName("svc", "latency", "handled", "handlerA"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS).update(5,
+				TimeUnit.MILLISECONDS);
+		registry.newTimer(new MetricName("svc", "latency", "handled", "handlerB"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS).update(7,
+				TimeUnit.MILLISECONDS);
+		transport.reset();
+		reporter.setRollupRules(Arrays.asList(new RollupRule("svc", "*", "handler*", null, "all", RollupRule.GaugeReduction.MAX)));
+		reporter.reportMetrics(new TreeMap<MetricName, Metric>(registry.allMetrics()), 1000000l);
+		Assert.assertEquals(transport.toString(), "null.svc.latency.handled.count 100 1000000\n"
+				+ "null.svc.latency.handled.99percentile " + new Snapshot(samples).getValue(0.99) + " 1000000\n"
+				+ "null.svc.latency.all.handled.count 2 1000000\n"
+				+ "null.svc.latency.all.handled.99percentile " + new Snapshot(new double[] { 5, 7 }).getValue(0.99) + " 1000000\n");
+	}
+
+}
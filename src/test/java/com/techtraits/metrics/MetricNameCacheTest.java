@@ -0,0 +1,83 @@
+package com.techtraits.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.MetricName;
+
+public class MetricNameCacheTest {
+
+	@Test(groups = "automated")
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		MetricNameCache<String> cache = new MetricNameCache<String>(16);
+		for (int i = 0; i < 16; i++) {
+			cache.put(name(i), "value" + i);
+		}
+		// Looked up after the others were inserted, so spared
+		Assert.assertEquals(cache.get(name(0)), "value0");
+		Assert.assertEquals(cache.get(name(1)), "value1");
+		cache.put(name(16), "value16");
+
+		// Evicts an eighth of the cache at once, the names used longest ago
+		Assert.assertEquals(cache.size(), 14);
+		Assert.assertEquals(cache.get(name(0)), "value0");
+		Assert.assertEquals(cache.get(name(1)), "value1");
+		Assert.assertEquals(cache.get(name(16)), "value16");
+		for (int i = 2; i < 5; i++) {
+			Assert.assertNull(cache.get(name(i)));
+		}
+		Assert.assertEquals(cache.get(name(5)), "value5");
+
+		cache.remove(name(5));
+		cache.clear();
+		Assert.assertEquals(cache.size(), 0);
+		Assert.assertNull(cache.get(name(0)));
+	}
+
+	@Test(groups = "automated")
+	public void testConcurrentUseStaysBounded() throws Exception {
+		final MetricNameCache<Integer> cache = new MetricNameCache<Integer>(1000);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 4; t++) {
+				final int offset = t * 500;
+				workers.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() {
+						for (int i = 0; i < 50000; i++) {
+							int id = offset + i % 2000;
+							Integer value = cache.get(name(id));
+							if (value == null) {
+								cache.put(name(id), id);
+							} else {
+								Assert.assertEquals(value.intValue(), id);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		// Another thread may insert while one evicts, so the bound only holds once the cache is quiet
+		Assert.assertTrue(cache.size() <= 1000 + 4, String.valueOf(cache.size()));
+	}
+
+	private static MetricName name(int i) {
+		return new MetricName("test", "cache", "name" + i);
+	}
+
+}
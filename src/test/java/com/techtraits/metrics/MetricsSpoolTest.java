@@ -0,0 +1,82 @@
+package com.techtraits.metrics;
+
+import java.io.File;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class MetricsSpoolTest {
+
+	@Test(groups = "automated")
+	public void testAppendPeekRemove() throws Exception {
+		File file = tempFile();
+		MetricsSpool spool = new MetricsSpool(file, 4096);
+		spool.append("first".getBytes(), 3);
+		spool.append("second".getBytes(), 1);
+		Assert.assertEquals(spool.size(), 2);
+
+		List<MetricsSpool.Record> records = spool.peek(10, 1000);
+		Assert.assertEquals(records.size(), 2);
+		Assert.assertEquals(new String(records.get(0).getPayload()), "first");
+		Assert.assertEquals(records.get(0).getTimeStamp(), 3);
+		Assert.assertEquals(new String(records.get(1).getPayload()), "second");
+
+		spool.removeThrough(records.get(0).getSequence());
+		Assert.assertEquals(spool.size(), 1);
+		Assert.assertEquals(new String(spool.peek(10, 1000).get(0).getPayload()), "second");
+		spool.close();
+	}
+
+	@Test(groups = "automated")
+	public void testFullSpoolDropsOldest() throws Exception {
+		File file = tempFile();
+		// Room for a little over three 100 byte payloads
+		MetricsSpool spool = new MetricsSpool(file, 32 + 3 * 113 + 50);
+		for (int i = 0; i < 20; i++) {
+			byte[] payload = new byte[100];
+			payload[0] = (byte) i;
+			Assert.assertTrue(spool.append(payload, i));
+			Assert.assertTrue(spool.size() <= 3);
+		}
+		List<MetricsSpool.Record> records = spool.peek(10, 10000);
+		Assert.assertEquals(records.size(), 3);
+		Assert.assertEquals(records.get(0).getPayload()[0], 17);
+		Assert.assertEquals(records.get(1).getPayload()[0], 18);
+		Assert.assertEquals(records.get(2).getPayload()[0], 19);
+		Assert.assertEquals(spool.getDropped(), 17);
+
+		Assert.assertFalse(spool.append(new byte[1000], 20));
+		spool.close();
+	}
+
+	@Test(groups = "automated")
+	public void testSpoolSurvivesReopen() throws Exception {
+		File file = tempFile();
+		MetricsSpool spool = new MetricsSpool(file, 1024);
+		for (int i = 0; i < 30; i++) {
+			spool.append(("payload" + i).getBytes(), i);
+		}
+		int size = spool.size();
+		long first = spool.peek(1, 1).get(0).getTimeStamp();
+		spool.close();
+
+		MetricsSpool reopened = new MetricsSpool(file, 1024);
+		Assert.assertEquals(reopened.size(), size);
+		List<MetricsSpool.Record> records = reopened.peek(100, 100000);
+		Assert.assertEquals(records.size(), size);
+		for (int i = 0; i < size; i++) {
+			Assert.assertEquals(records.get(i).getTimeStamp(), first + i);
+			Assert.assertEquals(new String(records.get(i).getPayload()), "payload" + (first + i));
+		}
+		reopened.close();
+	}
+
+	private File tempFile() throws Exception {
+		File file = File.createTempFile("hosted-graphite-spool", ".dat");
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+
+}
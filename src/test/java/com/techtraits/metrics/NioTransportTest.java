@@ -0,0 +1,114 @@
+package com.techtraits.metrics;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+public class NioTransportTest {
+
+	@Test(groups = "automated")
+	public void testUdpPacksDatagrams() throws Exception {
+		DatagramSocket listener = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		listener.setSoTimeout(5000);
+		UdpTransport transport = new UdpTransport(new InetSocketAddress("127.0.0.1", listener.getLocalPort()), "key.", 200);
+		try {
+			HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+			reporter.reportMetrics(counters("testUdp", 100), 1000000l);
+
+			List<String> lines = new ArrayList<String>();
+			int datagrams = 0;
+			byte[] buffer = new byte[65536];
+			while (lines.size() < 100) {
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				listener.receive(packet);
+				datagrams++;
+				Assert.assertTrue(packet.getLength() <= 200);
+				String datagram = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+				Assert.assertTrue(datagram.endsWith("\n"));
+				for (String line : datagram.split("\n")) {
+					lines.add(line);
+				}
+			}
+			Assert.assertTrue(datagrams < 100, "lines should be packed into datagrams");
+			for (int i = 0; i < 100; i++) {
+				Assert.assertTrue(lines.contains("key.null.test.counter.testUdp" + i + ".count " + i + " 1000000"));
+			}
+		} finally {
+			transport.close();
+			listener.close();
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testTcpReconnects() throws Exception {
+		ServerSocket listener = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		listener.setSoTimeout(5000);
+		TcpTransport transport = new TcpTransport(new InetSocketAddress("127.0.0.1", listener.getLocalPort()));
+		try {
+			HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+			Map<MetricName, Metric> metrics = counters("testTcp", 1000);
+
+			reporter.reportMetrics(metrics, 1000000l);
+			Socket first = listener.accept();
+			first.setSoTimeout(5000);
+			Set<String> lines = readLines(first, 1000);
+			for (int i = 0; i < 1000; i++) {
+				Assert.assertTrue(lines.contains("null.test.counter.testTcp" + i + ".count " + i + " 1000000"));
+			}
+
+			// The receiver goes away, the next report reconnects
+			first.close();
+			Thread.sleep(100);
+			reporter.reportMetrics(metrics, 1000060l);
+			Socket second = listener.accept();
+			second.setSoTimeout(5000);
+			lines = readLines(second, 1000);
+			for (int i = 0; i < 1000; i++) {
+				Assert.assertTrue(lines.contains("null.test.counter.testTcp" + i + ".count " + i + " 1000060"));
+			}
+			second.close();
+		} finally {
+			transport.close();
+			listener.close();
+		}
+	}
+
+	private Map<MetricName, Metric> counters(String prefix, int count) {
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+		for (int i = 0; i < count; i++) {
+			Counter c = Metrics.newCounter(NioTransportTest.class, prefix + i);
+			c.inc(i);
+			metrics.put(new MetricName("test", "counter", prefix + i), c);
+		}
+		return metrics;
+	}
+
+	private Set<String> readLines(Socket socket, int count) throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		Set<String> lines = new HashSet<String>();
+		while (lines.size() < count) {
+			lines.add(reader.readLine());
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.techtraits.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class ParallelCollectorTest {
+
+	@Test(groups = "automated")
+	public void testParallelCollection() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		for (int i = 0; i < 5000; i++) {
+			switch (i % 4) {
+			case 0:
+				registry.newCounter(ParallelCollectorTest.class, "parallelCounter" + i).inc(i);
+				break;
+			case 1:
+				Histogram histogram = registry.newHistogram(ParallelCollectorTest.class, "parallelHistogram" + i);
+				for (int j = 0; j < 20; j++) {
+					histogram.update(i * j);
+				}
+				break;
+			case 2:
+				final double value = i / 7.0;
+				registry.newGauge(ParallelCollectorTest.class, "parallelGauge" + i, new Gauge<Double>() {
+
+					@Override
+					public Double getValue() {
+						return value;
+					}
+				});
+				break;
+			default:
+				final String text = String.valueOf(i);
+				registry.newGauge(ParallelCollectorTest.class, "parallelStringGauge" + i, new Gauge<String>() {
+
+					@Override
+					public String getValue() {
+						return text;
+					}
+				});
+				break;
+			}
+		}
+		Map<MetricName, Metric> metrics = registry.allMetrics();
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			// Line protocol, encoded by each slice
+			CapturingTransport serial = new CapturingTransport();
+			new HostedGraphiteReporter(serial).reportMetrics(metrics, 1000000l);
+			CapturingTransport parallel = new CapturingTransport();
+			HostedGraphiteReporter parallelReporter = new HostedGraphiteReporter(parallel);
+			parallelReporter.setParallelCollection(executor, 4);
+			parallelReporter.reportMetrics(metrics, 1000000l);
+			Assert.assertEquals(serial.toString().split("\\n").length, 1250 * (1 + 6 + 1 + 1));
+			Assert.assertEquals(parallel.toByteArray(), serial.toByteArray());
+
+			// Delta filtered pickles, recorded by each slice and replayed in order
+			HostedGraphiteReporter serialPickles = new HostedGraphiteReporter(serial);
+			serialPickles.setPickleProtocol(500);
+			serialPickles.setDeltaReporting(2, true);
+			parallelReporter.setPickleProtocol(500);
+			parallelReporter.setDeltaReporting(2, true);
+			for (int report = 0; report < 3; report++) {
+				serial.reset();
+				parallel.reset();
+				serialPickles.reportMetrics(metrics, 1000000l + report * 60);
+				parallelReporter.reportMetrics(metrics, 1000000l + report * 60);
+				Assert.assertEquals(parallel.toByteArray(), serial.toByteArray());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+	}
+
+}
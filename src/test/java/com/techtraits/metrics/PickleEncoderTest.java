@@ -0,0 +1,235 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Mockito.mock;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class PickleEncoderTest {
+
+	@Test(groups = "automated")
+	public void testFramesDecode() throws Exception {
+		PickleEncoder encoder = new PickleEncoder(newReporter(), 1, 3);
+		MetricName name = new MetricName("test", "pickle", "test Frames");
+		encoder.write(name, MetricPostfix.COUNT, 5l, 1000000l);
+		encoder.write(name, MetricPostfix.MEAN, 2.5, 1000000l);
+		encoder.write(name, MetricPostfix.COUNT, 6l, 1000060l);
+		encoder.write(name, MetricPostfix.VALUE, Long.MIN_VALUE, 5000000000l);
+		encoder.write(name, MetricPostfix.VALUE, "12", 1000000l);
+		encoder.write(name, MetricPostfix.VALUE, "0.25", 1000000l);
+		encoder.write(name, MetricPostfix.VALUE, "not a number", 1000000l);
+		encoder.write(name, MetricPostfix.VALUE, (String) null, 1000000l);
+		encoder.finish();
+
+		PickleDecoder decoder = new PickleDecoder(encoder.toByteArray());
+		List<Object[]> first = decoder.nextFrame();
+		Assert.assertEquals(first.size(), 3);
+		assertEntry(first.get(0), "null.test.pickle.test-Frames.count", 1000000l, 5l);
+		assertEntry(first.get(1), "null.test.pickle.test-Frames.mean", 1000000l, 2.5);
+		assertEntry(first.get(2), "null.test.pickle.test-Frames.count", 1000060l, 6l);
+
+		List<Object[]> second = decoder.nextFrame();
+		Assert.assertEquals(second.size(), 3);
+		assertEntry(second.get(0), "null.test.pickle.test-Frames.value", 5000000000l, Long.MIN_VALUE);
+		assertEntry(second.get(1), "null.test.pickle.test-Frames.value", 1000000l, 12l);
+		assertEntry(second.get(2), "null.test.pickle.test-Frames.value", 1000000l, 0.25);
+		Assert.assertFalse(decoder.hasNext());
+	}
+
+	@Test(groups = "automated")
+	public void testLargeFrame() throws Exception {
+		PickleEncoder encoder = new PickleEncoder(newReporter(), 1, 10000);
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < 300; i++) {
+				encoder.write(new MetricName("test", "pickle", "metric" + i), MetricPostfix.COUNT, pass, 1000000l);
+			}
+		}
+		encoder.finish();
+
+		PickleDecoder decoder = new PickleDecoder(encoder.toByteArray());
+		List<Object[]> frame = decoder.nextFrame();
+		Assert.assertEquals(frame.size(), 600);
+		for (int i = 0; i < 600; i++) {
+			assertEntry(frame.get(i), "null.test.pickle.metric" + (i % 300) + ".count", 1000000l, (long) (i / 300));
+		}
+		Assert.assertFalse(decoder.hasNext());
+	}
+
+	@Test(groups = "automated")
+	public void testReportMatchesLineProtocol() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		Counter counter = registry.newCounter(PickleEncoderTest.class, "counter");
+		counter.inc(42);
+		Histogram histogram = registry.newHistogram(PickleEncoderTest.class, "histogram");
+		for (int i = 1; i <= 100; i++) {
+			histogram.update(i);
+		}
+		registry.newGauge(PickleEncoderTest.class, "gauge", new Gauge<Double>() {
+			@Override
+			public Double getValue() {
+				return 0.75;
+			}
+		});
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>(registry.allMetrics());
+
+		CapturingTransport lines = new CapturingTransport();
+		new HostedGraphiteReporter(lines).reportMetrics(metrics, 1000000l);
+		CapturingTransport pickles = new CapturingTransport();
+		HostedGraphiteReporter pickleReporter = new HostedGraphiteReporter(pickles);
+		pickleReporter.setPickleProtocol(4);
+		pickleReporter.reportMetrics(metrics, 1000000l);
+
+		List<Object[]> decoded = new ArrayList<Object[]>();
+		PickleDecoder decoder = new PickleDecoder(pickles.toByteArray());
+		while (decoder.hasNext()) {
+			List<Object[]> frame = decoder.nextFrame();
+			Assert.assertTrue(frame.size() <= 4);
+			decoded.addAll(frame);
+		}
+		String[] expected = lines.toString().split("\n");
+		Assert.assertEquals(decoded.size(), expected.length);
+		for (int i = 0; i < expected.length; i++) {
+			String[] parts = expected[i].split(" ");
+			Assert.assertEquals(decoded.get(i)[0], parts[0]);
+			Assert.assertEquals(decoded.get(i)[1], Long.valueOf(parts[2]));
+			Assert.assertEquals(((Number) decoded.get(i)[2]).doubleValue(), Double.parseDouble(parts[1]), expected[i]);
+		}
+	}
+
+	@Test(groups = "automated", expectedExceptions = IllegalStateException.class)
+	public void testNotForHostedGraphite() throws Exception {
+		newReporter().setPickleProtocol(500);
+	}
+
+	@Test(groups = "automated")
+	public void testNotForLineSplittingTransports() throws Exception {
+		InetSocketAddress carbon = new InetSocketAddress("127.0.0.1", 2004);
+		new HostedGraphiteReporter(new TcpTransport(carbon)).setPickleProtocol(500);
+		MetricsTransport[] transports = { new UdpTransport(carbon), new TcpTransport(carbon, "your-api-key.", 1000, 1000),
+				new HttpTransport("RosesAreRed", "http://127.0.0.1:2004/") };
+		for (MetricsTransport transport : transports) {
+			try {
+				new HostedGraphiteReporter(transport).setPickleProtocol(500);
+				Assert.fail("Expected pickle to be rejected for " + transport.getClass().getSimpleName());
+			} catch (IllegalStateException e) {
+				// Expected
+			} finally {
+				transport.close();
+			}
+		}
+	}
+
+	private static void assertEntry(Object[] entry, String path, long timeStamp, Object value) {
+		Assert.assertEquals(entry[0], path);
+		Assert.assertEquals(entry[1], timeStamp);
+		Assert.assertEquals(entry[2], value);
+	}
+
+	private HostedGraphiteReporter newReporter() throws Exception {
+		return new HostedGraphiteReporter("RosesAreRed", "http://www.hostedgraphite.com", mock(URLFetchService.class));
+	}
+
+	/**
+	 * Reads length prefixed frames back into <code>{path, timestamp, value}</code> entries, understanding only the opcodes carbon's
+	 * pickle receiver needs. Integers decode as {@link Long} and floats as {@link Double}.
+	 */
+	private static final class PickleDecoder {
+
+		private final ByteBuffer in;
+
+		PickleDecoder(byte[] frames) {
+			this.in = ByteBuffer.wrap(frames);
+		}
+
+		boolean hasNext() {
+			return in.hasRemaining();
+		}
+
+		@SuppressWarnings("unchecked")
+		List<Object[]> nextFrame() {
+			in.order(ByteOrder.BIG_ENDIAN);
+			int length = in.getInt();
+			int end = in.position() + length;
+			in.order(ByteOrder.LITTLE_ENDIAN);
+			LinkedList<Object> stack = new LinkedList<Object>();
+			LinkedList<Integer> marks = new LinkedList<Integer>();
+			while (true) {
+				int opcode = in.get() & 0xff;
+				switch (opcode) {
+				case PickleEncoder.PROTO:
+					Assert.assertEquals(in.get(), 2);
+					break;
+				case PickleEncoder.EMPTY_LIST:
+					stack.push(new ArrayList<Object[]>());
+					break;
+				case PickleEncoder.MARK:
+					marks.push(stack.size());
+					break;
+				case PickleEncoder.APPENDS:
+					int mark = marks.pop();
+					List<Object> items = new ArrayList<Object>();
+					while (stack.size() > mark) {
+						items.add(0, stack.pop());
+					}
+					for (Object item : items) {
+						Object[] tuple = (Object[]) item;
+						Object[] inner = (Object[]) tuple[1];
+						((List<Object[]>) stack.peek()).add(new Object[] { tuple[0], inner[0], inner[1] });
+					}
+					break;
+				case PickleEncoder.BINUNICODE:
+					byte[] utf8 = new byte[in.getInt()];
+					in.get(utf8);
+					stack.push(new String(utf8, MetricPostfix.UTF8));
+					break;
+				case PickleEncoder.BININT:
+					stack.push(Long.valueOf(in.getInt()));
+					break;
+				case PickleEncoder.LONG1:
+					int size = in.get() & 0xff;
+					long value = 0;
+					for (int i = 0; i < size; i++) {
+						value |= (in.get() & 0xffl) << (i * 8);
+					}
+					stack.push(value);
+					break;
+				case PickleEncoder.BINFLOAT:
+					in.order(ByteOrder.BIG_ENDIAN);
+					stack.push(in.getDouble());
+					in.order(ByteOrder.LITTLE_ENDIAN);
+					break;
+				case PickleEncoder.TUPLE2:
+					Object second = stack.pop();
+					stack.push(new Object[] { stack.pop(), second });
+					break;
+				case PickleEncoder.STOP:
+					Assert.assertEquals(in.position(), end);
+					Assert.assertEquals(stack.size(), 1);
+					Assert.assertTrue(marks.isEmpty());
+					return (List<Object[]>) stack.pop();
+				default:
+					Assert.fail("Unexpected opcode " + opcode);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,31 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.MetricName;
+
+public class RecordedValuesTest {
+
+	@Test(groups = "automated")
+	public void testStringIntoFullBuffer() throws Exception {
+		RecordedValues values = new RecordedValues(16);
+		MetricName name = new MetricName("test", "recorded", "testStringIntoFullBuffer");
+		for (int i = 0; i < 16; i++) {
+			values.write(name, MetricPostfix.COUNT, (long) i, 1000000l);
+		}
+		values.write(name, MetricPostfix.NONE, "full", 1000000l);
+		values.write(name, MetricPostfix.MEAN, 2.5, 1000000l);
+		Assert.assertEquals(values.size(), 18);
+
+		MetricSink sink = mock(MetricSink.class);
+		values.replay(sink);
+		verify(sink).write(name, MetricPostfix.COUNT, 15l, 1000000l);
+		verify(sink).write(name, MetricPostfix.NONE, "full", 1000000l);
+		verify(sink).write(name, MetricPostfix.MEAN, 2.5, 1000000l);
+	}
+
+}
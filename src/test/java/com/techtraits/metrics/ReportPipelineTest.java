@@ -0,0 +1,148 @@
+package com.techtraits.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class ReportPipelineTest {
+
+	@Test(groups = "automated")
+	public void testPipelinedReporting() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		for (int i = 0; i < 500; i++) {
+			registry.newCounter(new MetricName("svc", "requests", "served" + i)).inc(i);
+			registry.newHistogram(new MetricName("svc", "latency", "handled" + i)).update(i);
+		}
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>(registry.allMetrics());
+		CapturingTransport whole = new CapturingTransport();
+		new HostedGraphiteReporter(whole).reportMetrics(metrics, 1000000l);
+
+		final List<String> chunks = new ArrayList<String>();
+		final AtomicInteger concurrent = new AtomicInteger();
+		final AtomicInteger maxConcurrent = new AtomicInteger();
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter(new CapturingTransport() {
+
+			@Override
+			public synchronized void send(byte[] bytes, int offset, int length) {
+				maxConcurrent.set(Math.max(maxConcurrent.get(), concurrent.incrementAndGet()));
+				chunks.add(new String(bytes, offset, length, MetricPostfix.UTF8));
+				concurrent.decrementAndGet();
+			}
+		});
+		reporter.setPipelinedReporting(4096, 2);
+		reporter.reportMetrics(metrics, 1000000l);
+
+		StringBuilder streamed = new StringBuilder();
+		for (String chunk : chunks) {
+			// Chunks are sent as soon as they pass the chunk size, so never hold more than one extra line
+			Assert.assertTrue(chunk.length() < 4096 + 100, "Chunk of " + chunk.length() + " bytes");
+			Assert.assertTrue(chunk.endsWith("\n"));
+			streamed.append(chunk);
+		}
+		Assert.assertTrue(chunks.size() > 10);
+		Assert.assertEquals(maxConcurrent.get(), 1);
+		Assert.assertEquals(streamed.toString(), whole.toString());
+		reporter.close();
+	}
+
+	@Test(groups = "automated")
+	public void testPipelineReplacedDuringReport() throws Exception {
+		final MetricsRegistry registry = new MetricsRegistry();
+		for (int i = 0; i < 500; i++) {
+			registry.newCounter(new MetricName("svc", "requests", "served" + i)).inc(i);
+		}
+		final Semaphore sending = new Semaphore(0);
+		final Semaphore proceed = new Semaphore(0);
+		final CapturingTransport transport = new CapturingTransport() {
+
+			@Override
+			public void send(byte[] bytes, int offset, int length) throws IOException {
+				sending.release();
+				proceed.acquireUninterruptibly();
+				super.send(bytes, offset, length);
+			}
+		};
+		final HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+		reporter.setPipelinedReporting(1024, 1);
+		MetricsRegistry selfRegistry = new MetricsRegistry();
+		reporter.setSelfMetrics(selfRegistry, false);
+		Gauge<?> depth = (Gauge<?>) selfRegistry.allMetrics().get(
+				new MetricName(HostedGraphiteReporter.SELF_METRICS_DOMAIN, "pipeline", "depth"));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Void> report = executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws IOException {
+					reporter.reportMetrics(registry.allMetrics(), 1000000l);
+					return null;
+				}
+			});
+			// The first chunk is being sent and collection is waiting on the pipeline
+			Assert.assertTrue(sending.tryAcquire(10, TimeUnit.SECONDS));
+			Assert.assertEquals(depth.getValue(), 1);
+			reporter.setPipelinedReporting(2048, 2);
+			proceed.release(1000);
+			report.get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(transport.toString().split("\n").length, 500);
+
+			transport.reset();
+			reporter.reportMetrics(registry.allMetrics(), 1000060l);
+			Assert.assertEquals(transport.toString().split("\n").length, 500);
+		} finally {
+			proceed.release(1000);
+			executor.shutdown();
+			reporter.close();
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testPipelinedReportingFailure() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		for (int i = 0; i < 500; i++) {
+			registry.newCounter(new MetricName("svc", "requests", "served" + i)).inc(i);
+		}
+		final AtomicInteger sends = new AtomicInteger();
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter(new CapturingTransport() {
+
+			@Override
+			public synchronized void send(byte[] bytes, int offset, int length) throws IOException {
+				if (sends.incrementAndGet() == 2) {
+					throw new IOException("Connection reset");
+				}
+			}
+		});
+		reporter.setPipelinedReporting(1024, 1);
+		try {
+			reporter.reportMetrics(registry.allMetrics(), 1000000l);
+			Assert.fail("The failed chunk should fail the report");
+		} catch (IOException e) {
+			Assert.assertEquals(e.getMessage(), "Connection reset");
+		}
+		// Collection stops soon after a chunk is lost
+		Assert.assertTrue(sends.get() < 5, sends.get() + " chunks sent");
+
+		// The encoders and the pending chunk permits were all returned
+		sends.set(10);
+		reporter.reportMetrics(registry.allMetrics(), 1000000l);
+		reporter.close();
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.mockito.ArgumentCaptor;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+public class ReporterMetricsTest {
+
+	@Test(groups = "automated")
+	public void testSelfMetrics() throws Exception {
+		URLFetchService fetcher = mock(URLFetchService.class);
+		HTTPResponse resp = mock(HTTPResponse.class);
+		HTTPResponse unavailable = mock(HTTPResponse.class);
+		ArgumentCaptor<HTTPRequest> reqCapture = ArgumentCaptor.forClass(HTTPRequest.class);
+
+		when(fetcher.fetch(any(HTTPRequest.class))).thenReturn(resp, unavailable, resp);
+		when(resp.getResponseCode()).thenReturn(202);
+		when(resp.getContent()).thenReturn("WOOHOO".getBytes());
+		when(unavailable.getResponseCode()).thenReturn(503);
+		when(unavailable.getContent()).thenReturn("Unavailable".getBytes());
+
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter("RosesAreRed", "http://www.hostedgraphite.com", fetcher);
+		MetricsRegistry registry = new MetricsRegistry();
+		reporter.setSelfMetrics(registry, true);
+
+		Counter c = Metrics.newCounter(ReporterMetricsTest.class, "testSelfMetricsCounter");
+		c.inc(3);
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+		metrics.put(new MetricName("test", "counter", "testSelfMetricsCounter"), c);
+		reporter.reportMetrics(metrics, 1000000l);
+		reporter.reportMetrics(metrics, 1000060l);
+		reporter.reportMetrics(metrics, 1000120l);
+
+		Map<MetricName, Metric> self = registry.allMetrics();
+		String domain = HostedGraphiteReporter.SELF_METRICS_DOMAIN;
+		Assert.assertEquals(((Timer) self.get(new MetricName(domain, "report", "collect"))).getCount(), 3);
+		Assert.assertEquals(((Timer) self.get(new MetricName(domain, "send", "post"))).getCount(), 3);
+		Assert.assertEquals(((Counter) self.get(new MetricName(domain, "failures", "503"))).getCount(), 1);
+		Assert.assertEquals(((Counter) self.get(new MetricName(domain, "send", "dropped"))).getCount(), 1);
+		Assert.assertEquals(((Histogram) self.get(new MetricName(domain, "report", "lines"))).getCount(), 3);
+
+		verify(fetcher, times(3)).fetch(reqCapture.capture());
+		String last = new String(reqCapture.getValue().getPayload());
+		Assert.assertTrue(last.contains("null.hostedgraphite-reporter.failures.503.count 1 1000120\n"));
+		Assert.assertTrue(last.contains("null.hostedgraphite-reporter.report.collect.count 2 1000120\n"));
+		Assert.assertTrue(last.contains("null.test.counter.testSelfMetricsCounter.count 3 1000120\n"));
+
+	}
+
+}
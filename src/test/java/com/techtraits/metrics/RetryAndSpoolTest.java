@@ -0,0 +1,158 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class RetryAndSpoolTest {
+
+	@Test(groups = "automated")
+	public void testReplayRespoolsOnlyFailedChunks() throws Exception {
+		final HTTPResponse failed = response(503);
+		final HTTPResponse accepted = response(202);
+		final List<String> posted = new ArrayList<String>();
+		final AtomicInteger failures = new AtomicInteger(2);
+		URLFetchService fetcher = mock(URLFetchService.class);
+		when(fetcher.fetch(any(HTTPRequest.class))).thenReturn(failed);
+		when(fetcher.fetchAsync(any(HTTPRequest.class))).thenAnswer(new Answer<Future<HTTPResponse>>() {
+
+			@Override
+			public Future<HTTPResponse> answer(InvocationOnMock invocation) throws Throwable {
+				final String line = new String(((HTTPRequest) invocation.getArguments()[0]).getPayload());
+				posted.add(line);
+				FutureTask<HTTPResponse> response = new FutureTask<HTTPResponse>(new Callable<HTTPResponse>() {
+
+					@Override
+					public HTTPResponse call() {
+						// The second line fails twice
+						return line.contains(".b.") && failures.getAndDecrement() > 0 ? failed : accepted;
+					}
+				});
+				response.run();
+				return response;
+			}
+		});
+		MetricsRegistry registry = new MetricsRegistry();
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+		for (String scope : new String[] { "a", "b", "c" }) {
+			MetricName name = new MetricName("test", "counter", "served", scope);
+			registry.newCounter(name).inc();
+			metrics.put(name, registry.allMetrics().get(name));
+		}
+		File file = File.createTempFile("hosted-graphite-spool", ".dat");
+		file.delete();
+		file.deleteOnExit();
+		ScheduledExecutorService drainer = mock(ScheduledExecutorService.class);
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter("RosesAreRed", "http://www.hostedgraphite.com", fetcher);
+		reporter.setSpool(file, 64 * 1024, 1024 * 1024, drainer);
+		ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+		verify(drainer).scheduleWithFixedDelay(drain.capture(), eq(1l), eq(1l), eq(TimeUnit.SECONDS));
+		try {
+			// Spooled whole, then replayed a line at a time
+			reporter.reportMetrics(metrics, 1000000l);
+			Assert.assertEquals(reporter.getSpoolDepth(), 1);
+			reporter.setChunkedPosting(1, 4);
+
+			drain.getValue().run();
+			Assert.assertEquals(posted, Arrays.asList("null.test.counter.a.served.count 1 1000000\n",
+					"null.test.counter.b.served.count 1 1000000\n", "null.test.counter.c.served.count 1 1000000\n",
+					"null.test.counter.b.served.count 1 1000000\n"));
+			Assert.assertEquals(reporter.getSpoolDepth(), 1);
+
+			posted.clear();
+			drain.getValue().run();
+			Assert.assertEquals(posted, Arrays.asList("null.test.counter.b.served.count 1 1000000\n"));
+			Assert.assertEquals(reporter.getSpoolDepth(), 0);
+		} finally {
+			reporter.closeSpool();
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testRetryAndSpool() throws Exception {
+		URLFetchService fetcher = mock(URLFetchService.class);
+		HTTPResponse failed = response(503);
+		HTTPResponse accepted = response(202);
+		ArgumentCaptor<HTTPRequest> reqCapture = ArgumentCaptor.forClass(HTTPRequest.class);
+
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter("RosesAreRed", "http://www.hostedgraphite.com", fetcher);
+		reporter.setRetryPolicy(new RetryPolicy(3, 1, 10));
+
+		// Recovers on the third attempt
+		when(fetcher.fetch(any(HTTPRequest.class))).thenReturn(failed, failed, accepted);
+		Counter c = Metrics.newCounter(RetryAndSpoolTest.class, "testRetryCounter");
+		c.inc();
+		MetricName name = new MetricName("test", "counter", "testRetryCounter");
+		reporter.reportCounterView(name, c, 1000000l);
+		verify(fetcher, times(3)).fetch(any(HTTPRequest.class));
+
+		// Down for good, both reports end up in the spool
+		File file = File.createTempFile("hosted-graphite-spool", ".dat");
+		file.delete();
+		file.deleteOnExit();
+		when(fetcher.fetch(any(HTTPRequest.class))).thenReturn(failed);
+		ScheduledExecutorService drainer = mock(ScheduledExecutorService.class);
+		reporter.setSpool(file, 64 * 1024, 1024 * 1024, drainer);
+		ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+		verify(drainer).scheduleWithFixedDelay(drain.capture(), eq(1l), eq(1l), eq(TimeUnit.SECONDS));
+		try {
+			c.inc();
+			reporter.reportCounterView(name, c, 1000120l);
+			c.inc();
+			reporter.reportCounterView(name, c, 1000060l);
+			verify(fetcher, times(9)).fetch(any(HTTPRequest.class));
+			Assert.assertEquals(reporter.getSpoolDepth(), 2);
+
+			// Back up, the drainer replays the spool oldest report first
+			when(fetcher.fetch(any(HTTPRequest.class))).thenReturn(accepted);
+			drain.getValue().run();
+			Assert.assertEquals(reporter.getSpoolDepth(), 0);
+		} finally {
+			reporter.closeSpool();
+		}
+		verify(fetcher, times(11)).fetch(reqCapture.capture());
+		List<HTTPRequest> requests = reqCapture.getAllValues();
+		Assert.assertEquals(new String(requests.get(9).getPayload()), "null.test.counter.testRetryCounter.count 3 1000060\n");
+		Assert.assertEquals(new String(requests.get(10).getPayload()), "null.test.counter.testRetryCounter.count 2 1000120\n");
+
+	}
+
+	private static HTTPResponse response(int code) {
+		HTTPResponse response = mock(HTTPResponse.class);
+		when(response.getResponseCode()).thenReturn(code);
+		when(response.getContent()).thenReturn(new byte[0]);
+		return response;
+	}
+
+}
@@ -0,0 +1,100 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.stats.Snapshot;
+
+public class RollupAggregatorTest {
+
+	@Test(groups = "automated")
+	public void testSnapshotsSkippedUnlessSelected() throws Exception {
+		Map<MetricName, Metric> metrics = new TreeMap<MetricName, Metric>();
+		Timer[] timers = new Timer[3];
+		for (int i = 0; i < timers.length; i++) {
+			Meter meter = mock(Meter.class);
+			when(meter.getCount()).thenReturn(2l);
+			timers[i] = mock(Timer.class);
+			when(timers[i].getMeter()).thenReturn(meter);
+			when(timers[i].getCount()).thenReturn(2l);
+			when(timers[i].getMean()).thenReturn(1.5);
+			metrics.put(new MetricName("svc", "latency", "handled", "handler" + i), timers[i]);
+		}
+		Map<Class<? extends Metric>, List<String>> attributes = new HashMap<Class<? extends Metric>, List<String>>();
+		attributes.put(Timer.class, Arrays.asList("count", "mean"));
+		CapturingTransport transport = new CapturingTransport();
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+		reporter.setMetricFilter(new MetricFilter(Arrays.asList("svc.*"), Arrays.<String> asList(), attributes));
+		reporter.setRollupRules(Arrays.asList(new RollupRule("svc", "*", "handler*", null, "all", RollupRule.GaugeReduction.AVG)));
+		reporter.reportMetrics(metrics, 1000000l);
+
+		Assert.assertEquals(transport.toString(), "null.svc.latency.all.handled.count 6 1000000\n"
+				+ "null.svc.latency.all.handled.mean 1.5 1000000\n");
+		for (Timer timer : timers) {
+			verify(timer, never()).getSnapshot();
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testRollup() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.newCounter(new MetricName("svc", "requests", "served", "handlerA")).inc(3);
+		registry.newCounter(new MetricName("svc", "requests", "served", "handlerB")).inc(4);
+		registry.newCounter(new MetricName("svc", "requests", "served", "admin")).inc(5);
+		for (final double depth : new double[] { 1.5, 2.5 }) {
+			registry.newGauge(new MetricName("svc", "queue", "depth", "handler" + depth), new Gauge<Double>() {
+
+				@Override
+				public Double getValue() {
+					return depth;
+				}
+			});
+		}
+		Histogram first = registry.newHistogram(new MetricName("svc", "latency", "handled", "handlerA"));
+		Histogram second = registry.newHistogram(new MetricName("svc", "latency", "handled", "handlerB"));
+		double[] samples = new double[100];
+		for (int i = 1; i <= 50; i++) {
+			first.update(i);
+			second.update(50 + i);
+			samples[i - 1] = i;
+			samples[49 + i] = 50 + i;
+		}
+		Snapshot merged = new Snapshot(samples);
+
+		CapturingTransport transport = new CapturingTransport();
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+		reporter.setRollupRules(Arrays.asList(new RollupRule("svc", "*", "handler*", null, "all", RollupRule.GaugeReduction.MAX)));
+		reporter.reportMetrics(new TreeMap<MetricName, Metric>(registry.allMetrics()), 1000000l);
+
+		Assert.assertEquals(transport.toString(), "null.svc.requests.admin.served.count 5 1000000\n"
+				// Rolled up metrics follow in the order first seen
+				+ "null.svc.latency.all.handled.count 100 1000000\n"
+				+ "null.svc.latency.all.handled.mean 50.5 1000000\n"
+				+ "null.svc.latency.all.handled.median " + merged.getMedian() + " 1000000\n"
+				+ "null.svc.latency.all.handled.95percentile " + merged.getValue(0.95) + " 1000000\n"
+				+ "null.svc.latency.all.handled.98percentile " + merged.getValue(0.98) + " 1000000\n"
+				+ "null.svc.latency.all.handled.99percentile " + merged.getValue(0.99) + " 1000000\n"
+				+ "null.svc.queue.all.depth.value 2.5 1000000\n"
+				+ "null.svc.requests.all.served.count 7 1000000\n");
+
+	}
+
+}
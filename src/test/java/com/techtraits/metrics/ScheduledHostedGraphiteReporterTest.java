@@ -0,0 +1,202 @@
+package com.techtraits.metrics;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+public class ScheduledHostedGraphiteReporterTest {
+
+	@Test(groups = "automated")
+	public void testBoundaries() {
+		Assert.assertEquals(ScheduledHostedGraphiteReporter.nextBoundary(0, 60000), 60000);
+		Assert.assertEquals(ScheduledHostedGraphiteReporter.nextBoundary(59999, 60000), 60000);
+		Assert.assertEquals(ScheduledHostedGraphiteReporter.nextBoundary(60000, 60000), 120000);
+		Assert.assertEquals(ScheduledHostedGraphiteReporter.floorBoundary(60000, 60000), 60000);
+		Assert.assertEquals(ScheduledHostedGraphiteReporter.floorBoundary(119999, 60000), 60000);
+	}
+
+	@Test(groups = "automated")
+	public void testAlignedReportsDoNotOverlap() throws Exception {
+		final long[] now = { 500 };
+		final List<Long> timestamps = new ArrayList<Long>();
+		HostedGraphiteReporter reporter = mock(HostedGraphiteReporter.class);
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				timestamps.add((Long) invocation.getArguments()[1]);
+				if (timestamps.size() == 1) {
+					// Overrun the next boundary
+					now[0] = 2500;
+				}
+				return null;
+			}
+		}).when(reporter).reportMetrics(any(Map.class), anyLong());
+		ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+		ScheduledFuture<?> pending = mock(ScheduledFuture.class);
+		doReturn(pending).when(executor).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+		when(executor.awaitTermination(anyLong(), any(TimeUnit.class))).thenReturn(true);
+		ScheduledHostedGraphiteReporter scheduled = new ScheduledHostedGraphiteReporter(reporter, new MetricsRegistry(), 1,
+				TimeUnit.SECONDS, executor) {
+
+			@Override
+			long currentTimeMillis() {
+				return now[0];
+			}
+		};
+		ArgumentCaptor<Runnable> next = ArgumentCaptor.forClass(Runnable.class);
+
+		scheduled.start();
+		verify(executor).schedule(next.capture(), eq(500l), eq(TimeUnit.MILLISECONDS));
+		now[0] = 1000;
+		next.getValue().run();
+		// The next report is only scheduled once the running one is done, the overrun skips the boundary at two seconds
+		verify(executor, times(2)).schedule(next.capture(), eq(500l), eq(TimeUnit.MILLISECONDS));
+		now[0] = 3000;
+		next.getValue().run();
+		verify(executor).schedule(next.capture(), eq(1000l), eq(TimeUnit.MILLISECONDS));
+
+		now[0] = 3400;
+		Assert.assertTrue(scheduled.shutdown(5, TimeUnit.SECONDS));
+		verify(pending).cancel(false);
+		// The final flush is stamped with the boundary that has passed, rewriting the last report
+		Assert.assertEquals(timestamps, Arrays.asList(1l, 3l, 3l));
+	}
+
+	@Test(groups = "automated")
+	public void testFinalFlushStampedWithPassedBoundary() throws Exception {
+		HostedGraphiteReporter reporter = mock(HostedGraphiteReporter.class);
+		final List<Long> timestamps = new ArrayList<Long>();
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				timestamps.add((Long) invocation.getArguments()[1]);
+				return null;
+			}
+		}).when(reporter).reportMetrics(any(Map.class), anyLong());
+		final long[] now = { 125500 };
+		ScheduledHostedGraphiteReporter scheduled = new ScheduledHostedGraphiteReporter(reporter, new MetricsRegistry(), 10,
+				TimeUnit.SECONDS) {
+
+			@Override
+			long currentTimeMillis() {
+				return now[0];
+			}
+		};
+		scheduled.report(110000, false);
+		Assert.assertTrue(scheduled.shutdown(1, TimeUnit.SECONDS));
+		// The interval that ended at 120 seconds was not reported, the one in progress is left to the next process
+		Assert.assertEquals(timestamps, Arrays.asList(110l, 120l));
+
+		timestamps.clear();
+		scheduled = new ScheduledHostedGraphiteReporter(reporter, new MetricsRegistry(), 10, TimeUnit.SECONDS) {
+
+			@Override
+			long currentTimeMillis() {
+				return now[0];
+			}
+		};
+		scheduled.report(120000, false);
+		now[0] = 110000;
+		Assert.assertTrue(scheduled.shutdown(1, TimeUnit.SECONDS));
+		// Rewrites the last report rather than an earlier point when the clock stepped back
+		Assert.assertEquals(timestamps, Arrays.asList(120l, 120l));
+	}
+
+	@Test(groups = "automated")
+	public void testPeriodInWholeSeconds() {
+		HostedGraphiteReporter reporter = mock(HostedGraphiteReporter.class);
+		new ScheduledHostedGraphiteReporter(reporter, new MetricsRegistry(), 2000, TimeUnit.MILLISECONDS);
+		try {
+			new ScheduledHostedGraphiteReporter(reporter, new MetricsRegistry(), 1500, TimeUnit.MILLISECONDS);
+			Assert.fail("Expected a period of 1.5 seconds to be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test(groups = "automated")
+	public void testTiers() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.newCounter(new MetricName("svc", "requests", "served")).inc(2);
+		registry.newCounter(new MetricName("svc", "batch", "imported")).inc(3);
+		registry.newTimer(new MetricName("svc", "latency", "handled"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+		final AtomicInteger sends = new AtomicInteger();
+		CapturingTransport transport = new CapturingTransport() {
+
+			@Override
+			public synchronized void send(byte[] bytes, int offset, int length) throws IOException {
+				sends.incrementAndGet();
+				super.send(bytes, offset, length);
+			}
+		};
+		HostedGraphiteReporter reporter = new HostedGraphiteReporter(transport);
+		reporter.setSnapshotStatistics(Collections.<SnapshotStatistic> emptyList());
+		ScheduledHostedGraphiteReporter scheduled = new ScheduledHostedGraphiteReporter(reporter, registry, 1, TimeUnit.MINUTES);
+		scheduled.setTiers(Arrays.asList(new ReportingTier(10, TimeUnit.SECONDS, null, Timer.class), new ReportingTier(5,
+				TimeUnit.MINUTES, "svc.batch.*", null)));
+
+		// Only the timers are due every ten seconds
+		scheduled.report(10000, false);
+		Assert.assertEquals(reportedNames(transport), Arrays.asList("svc.latency.handled"));
+		scheduled.report(30000, false);
+		Assert.assertEquals(reportedNames(transport), Arrays.asList("svc.latency.handled"));
+		// Tiers falling due together share one request
+		scheduled.report(60000, false);
+		Assert.assertEquals(reportedNames(transport), Arrays.asList("svc.latency.handled", "svc.requests.served"));
+		scheduled.report(300000, false);
+		Assert.assertEquals(reportedNames(transport), Arrays.asList("svc.batch.imported", "svc.latency.handled", "svc.requests.served"));
+		Assert.assertEquals(sends.get(), 4);
+		// The final flush reports every tier
+		scheduled.report(310000, true);
+		Assert.assertEquals(reportedNames(transport), Arrays.asList("svc.batch.imported", "svc.latency.handled", "svc.requests.served"));
+
+		Assert.assertEquals(ScheduledHostedGraphiteReporter.gcd(60000, 10000), 10000);
+		Assert.assertEquals(ScheduledHostedGraphiteReporter.gcd(60000, 45000), 15000);
+	}
+
+	/**
+	 * @return the distinct metric names sent since the last call, in order
+	 */
+	private static List<String> reportedNames(CapturingTransport transport) {
+		List<String> names = new ArrayList<String>();
+		for (String line : transport.toString().split("\n")) {
+			String[] parts = line.split(" ")[0].split("\\.");
+			String name = parts[1] + "." + parts[2] + "." + parts[3];
+			if (!names.contains(name)) {
+				names.add(name);
+			}
+		}
+		transport.reset();
+		return names;
+	}
+
+}
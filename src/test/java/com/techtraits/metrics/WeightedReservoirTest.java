@@ -0,0 +1,55 @@
+package com.techtraits.metrics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.stats.Snapshot;
+
+public class WeightedReservoirTest {
+
+	@Test(groups = "automated")
+	public void testKeepsEverythingUnderCapacity() throws Exception {
+		WeightedReservoir reservoir = new WeightedReservoir(8, new Random(1));
+		reservoir.add(3, new Snapshot(new double[] { 1, 2, 3 }));
+		reservoir.add(0, new Snapshot(new double[] { 9 }));
+		reservoir.add(200, new Snapshot(new double[] { 4, 5 }));
+		Assert.assertEquals(reservoir.toSnapshot().getValues(), new double[] { 1, 2, 3, 4, 5 });
+	}
+
+	@Test(groups = "automated")
+	public void testWeightsValuesByUpdates() throws Exception {
+		WeightedReservoir reservoir = new WeightedReservoir(1028, new Random(42));
+		// As many samples each, but the first snapshot stands for a hundred times the updates
+		reservoir.add(102800, new Snapshot(filled(1028, 1)));
+		reservoir.add(1028, new Snapshot(filled(1028, 1000)));
+		Snapshot snapshot = reservoir.toSnapshot();
+		Assert.assertEquals(snapshot.size(), 1028);
+		Assert.assertEquals(snapshot.getValue(0.95), 1d);
+		int idle = 0;
+		for (double value : snapshot.getValues()) {
+			if (value == 1000) {
+				idle++;
+			}
+		}
+		// A few percent of the samples rather than the half an unweighted merge keeps
+		Assert.assertTrue(idle > 0 && idle < 50, String.valueOf(idle));
+
+		WeightedReservoir even = new WeightedReservoir(1028, new Random(42));
+		for (int i = 0; i < 10; i++) {
+			even.add(5000, new Snapshot(filled(1028, i)));
+		}
+		Snapshot evenSnapshot = even.toSnapshot();
+		Assert.assertEquals(evenSnapshot.size(), 1028);
+		Assert.assertEquals(evenSnapshot.getMedian(), 4.5, 1);
+	}
+
+	private static double[] filled(int length, double value) {
+		double[] values = new double[length];
+		Arrays.fill(values, value);
+		return values;
+	}
+
+}